@@ -0,0 +1,18 @@
+# Capacity sweep: runLoadGenerator.sh against nodes given as arguments (IP:port).
+nodes=""
+for n in "$@"
+do
+  nodes="$nodes -node $n"
+done
+for c in 16 64 256
+do
+  echo concurrency=$c
+  l="c${c}"
+  ./runLoadGenerator.sh $nodes -connections 8 -keys $(( 4 * $c )) -concurrency $c -duration 120 -csv ${l}.csv -hgrm ${l}.hgrm
+done
+for t in 100 500 1000 2000
+do
+  echo rate=$t
+  l="t${t}"
+  ./runLoadGenerator.sh $nodes -connections 8 -keys $(( 2 * $t )) -rate $t -duration 120 -csv ${l}.csv -hgrm ${l}.hgrm
+done
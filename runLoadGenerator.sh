@@ -0,0 +1,2 @@
+# Run mvn package first.
+java -cp "target/coinspermia-1.0-SNAPSHOT.jar:target/lib/*" com.dialectek.coinspermia.client.LoadGenerator $*
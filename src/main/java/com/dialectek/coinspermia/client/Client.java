@@ -804,8 +804,7 @@ public class Client extends JFrame
                   statusText.setText("Invalid coins: try refreshing wallet");
                   return;
                }
-               transaction.addInput(balance.publicKeyHash, Utils.signMessage(balance.privateKey,
-                                                                             Utils.intToBytes(balance.publicKeyHash)));
+               CoinspermiaClient.addInput(transaction, balance);
                inputBalances.add(balance);
                payRefresh();
                return;
@@ -881,30 +880,47 @@ public class Client extends JFrame
 
 
    // Payment transaction.
+   // The response is matched to the transaction by id, so the transaction
+   // being edited is cleared only if it is the one that succeeded.
    void payTx(Transaction transaction)
    {
       if (session != null)
       {
-         try
-         {
-            Message message = new Message(Message.TRANSACTION_REQUEST);
-            message.transaction = transaction;
-            if (transaction.type == Transaction.MINT)
-            {
-               message.password = password;
-            }
-            session.getBasicRemote().sendObject(message);
-         }
-         catch (Exception e)
+         PendingTransactions.of(session).submit(transaction, password).whenComplete((response, e) -> payResult(transaction, response, e));
+      }
+      else
+      {
+         statusText.setText("Cannot send transaction: no connection");
+      }
+   }
+
+
+   // Payment transaction result.
+   void payResult(Transaction transaction, Message response, Throwable e)
+   {
+      if (e != null)
+      {
+         String message = "Cannot send transaction to node: " + e.getMessage();
+         logger.warning(message);
+         statusText.setText(message);
+      }
+      else if (response.result == Parameters.SUCCESS)
+      {
+         if (this.transaction == transaction)
          {
-            String message = "Cannot send transaction to node: " + e.getMessage();
-            logger.warning(message);
-            statusText.setText(message);
+            this.transaction = new Transaction();
+            inputBalances    = new ArrayList<Balance>();
+            payRefresh();
          }
+         statusText.setText("Success");
+      }
+      else if (response.result == Parameters.BUSY)
+      {
+         statusText.setText("Node busy: try again later");
       }
       else
       {
-         statusText.setText("Cannot send transaction: no connection");
+         statusText.setText("Fail");
       }
    }
 
@@ -958,7 +974,7 @@ public class Client extends JFrame
       {
          Transaction.Output output = transaction.outputs.get(i);
          rowData[j][0] = "to";
-         rowData[j][1] = Utils.hashPublicKey(output.publicKey) + "";
+         rowData[j][1] = output.publicKeyHash + "";
          rowData[j][2] = output.coins + "";
       }
       payTableModel.rowData = rowData;
@@ -33,6 +33,10 @@ public class ClientEndpoint
    @OnMessage
    public void onMessage(Message message, Session session)
    {
+      // Complete pending request.
+      PendingTransactions pending = PendingTransactions.get(session);
+      if ((pending != null) && pending.complete(message)) { return; }
+
       switch (message.type)
       {
       case Message.TRANSACTION_RESPONSE:
@@ -64,6 +68,13 @@ public class ClientEndpoint
                }
             }
          }
+         else if (message.result == Parameters.BUSY)
+         {
+            if (Client.client != null)
+            {
+               Client.client.statusText.setText("Node busy: try again later");
+            }
+         }
          else
          {
             if (Client.client != null)
@@ -101,5 +112,7 @@ public class ClientEndpoint
    @OnClose
    public void onClose(Session session, CloseReason closeReason)
    {
+      PendingTransactions pending = PendingTransactions.get(session);
+      if (pending != null) { pending.close(); }
    }
 }
@@ -0,0 +1,241 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Coinspermia client.
+ * Headless client for services that embed Coinspermia: submits transactions
+ * and requests balances and censuses of a node, without the GUI. Requests
+ * return futures and may be made by many threads at once over one session,
+ * their responses matched by id. The client connects on first use to the
+ * first of its nodes that accepts, and when that session fails, to the next
+ * one, in turn; requests outstanding on a failed session complete
+ * exceptionally, and the caller decides whether to retry them.
+ */
+
+package com.dialectek.coinspermia.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.Session;
+
+import org.glassfish.tyrus.client.ClientManager;
+
+import com.dialectek.coinspermia.shared.Balance;
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+import com.dialectek.coinspermia.shared.Utils;
+
+public class CoinspermiaClient
+{
+   // Node addresses (IP:port), and the one connected to or tried next.
+   private ArrayList<String> nodes;
+   private int               node;
+
+   // Session.
+   private volatile Session session;
+   private ClientManager    clientManager;
+
+   // Password for minting.
+   private String password;
+
+   // Connector.
+   private ExecutorService connector;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(CoinspermiaClient.class .getName());
+
+   // Constructor.
+   public CoinspermiaClient(List<String> nodes, String password)
+   {
+      if (nodes.isEmpty())
+      {
+         throw new IllegalArgumentException("No node addresses");
+      }
+      this.nodes    = new ArrayList<String>(nodes);
+      this.password = password;
+      node          = 0;
+      session       = null;
+      clientManager = ClientManager.createClient();
+      connector     = Executors.newSingleThreadExecutor(runnable ->
+                                                        {
+                                                           Thread thread = new Thread(runnable, "coinspermia-connect");
+                                                           thread.setDaemon(true);
+                                                           return(thread);
+                                                        });
+   }
+
+
+   // Connect to a node, unless connected: tries each node in turn, from the
+   // one after that of a failed session.
+   public synchronized Session connect() throws IOException
+   {
+      if (session != null)
+      {
+         if (session.isOpen()) { return(session); }
+         node    = (node + 1) % nodes.size();
+         session = null;
+      }
+      String failure = null;
+      for (int i = 0, j = nodes.size(); i < j; i++)
+      {
+         String address = nodes.get(node);
+         try
+         {
+            session = clientManager.connectToServer(ClientEndpoint.class,
+                                                    new URI(Parameters.WEBSOCKET_PROTOCOL + "://" + address + "/ws" + Parameters.URI));
+            return(session);
+         }
+         catch (Exception e)
+         {
+            failure = "Cannot connect to node " + address + ": " + e.getMessage();
+            logger.warning(failure);
+            node = (node + 1) % j;
+         }
+      }
+      throw new IOException(failure);
+   }
+
+
+   // Connected node address, or null.
+   public synchronized String connected()
+   {
+      if ((session != null) && session.isOpen()) { return(nodes.get(node)); }
+      return(null);
+   }
+
+
+   // Pending requests of a connected session, connecting if needed.
+   private CompletableFuture<PendingTransactions> pending()
+   {
+      Session current = session;
+
+      if ((current != null) && current.isOpen())
+      {
+         return(CompletableFuture.completedFuture(PendingTransactions.of(current)));
+      }
+      return(CompletableFuture.supplyAsync(() ->
+                                           {
+                                              try
+                                              {
+                                                 return(PendingTransactions.of(connect()));
+                                              }
+                                              catch (IOException e)
+                                              {
+                                                 throw new CompletionException(e);
+                                              }
+                                           }, connector));
+   }
+
+
+   // Submit transaction: the future completes with the node's result,
+   // e.g. Parameters.SUCCESS.
+   public CompletableFuture<Integer> submit(Transaction transaction)
+   {
+      return(pending().thenCompose(pending -> pending.submit(transaction, password))
+                .thenApply(response -> response.result));
+   }
+
+
+   // Balances of public keys.
+   public CompletableFuture<float[]> balances(List<PublicKey> publicKeys)
+   {
+      Transaction transaction = new Transaction();
+
+      transaction.type = Transaction.BALANCE;
+      for (PublicKey publicKey : publicKeys)
+      {
+         transaction.addOutput(publicKey, 0.0f);
+      }
+      return(pending().thenCompose(pending -> pending.submit(transaction, password))
+                .thenApply(response ->
+                           {
+                              if (response.result != Parameters.SUCCESS)
+                              {
+                                 throw new CompletionException(
+                                    new IOException("Balance request failed: result=" + response.result));
+                              }
+                              float[] balances = new float[response.transaction.outputs.size()];
+                              for (int i = 0; i < balances.length; i++)
+                              {
+                                 balances[i] = response.transaction.outputs.get(i).coins;
+                              }
+                              return(balances);
+                           }));
+   }
+
+
+   // Census of the connected node and its peers.
+   public CompletableFuture<ArrayList<String>> census()
+   {
+      return(pending().thenCompose(pending -> pending.send(new Message(Message.CENSUS_REQUEST)))
+                .thenApply(response ->
+                           {
+                              if (response.result != Parameters.SUCCESS)
+                              {
+                                 throw new CompletionException(
+                                    new IOException("Census request failed: result=" + response.result));
+                              }
+                              return(response.peers);
+                           }));
+   }
+
+
+   // Add balance as a signed transaction input.
+   public static void addInput(Transaction transaction, Balance balance) throws GeneralSecurityException
+   {
+      transaction.addInput(balance.publicKeyHash, Utils.signMessage(balance.privateKey,
+                                                                    Utils.intToBytes(balance.publicKeyHash)));
+   }
+
+
+   // Payment from balances to public keys.
+   public static Transaction payment(List<Balance> from, List<PublicKey> to, List<Float> coins)
+   throws GeneralSecurityException
+   {
+      Transaction transaction = new Transaction();
+
+      transaction.type = Transaction.PAYMENT;
+      for (Balance balance : from)
+      {
+         addInput(transaction, balance);
+      }
+      for (int i = 0, j = to.size(); i < j; i++)
+      {
+         transaction.addOutput(to.get(i), coins.get(i));
+      }
+      return(transaction);
+   }
+
+
+   // Close: requests outstanding complete exceptionally.
+   public synchronized void close()
+   {
+      connector.shutdown();
+      if (session != null)
+      {
+         try
+         {
+            session.close(new CloseReason(CloseCodes.NORMAL_CLOSURE, "Client shut down"));
+         }
+         catch (Exception e)
+         {
+            logger.warning("Cannot close connection to node " + nodes.get(node) + ": " + e.getMessage());
+         }
+         PendingTransactions pending = PendingTransactions.get(session);
+         if (pending != null) { pending.close(); }
+         session = null;
+      }
+   }
+}
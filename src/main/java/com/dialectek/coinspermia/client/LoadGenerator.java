@@ -0,0 +1,598 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Load generator.
+ * Drives live nodes with payment transactions for capacity planning. Mints
+ * a wallet of keys, then pays each funded key's coins to an empty key,
+ * either at a target rate (open loop) or with a fixed number of payments
+ * outstanding (closed loop), over connections spread across the given
+ * nodes. Open loop latency is measured from when a payment was due, so a
+ * backlog shows as latency rather than as a lower rate. Records results
+ * by kind, throughput and latency per interval as CSV, and the latency
+ * distribution of the whole run as an HdrHistogram percentile file.
+ *
+ * Usage:
+ * java com.dialectek.coinspermia.client.LoadGenerator
+ *    -node <address> [-node <address> ...] [-keys <keys>]
+ *    [-rate <payments/s> | -concurrency <outstanding payments>] ...
+ */
+
+package com.dialectek.coinspermia.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.dialectek.coinspermia.shared.Balance;
+import com.dialectek.coinspermia.shared.Histogram;
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class LoadGenerator
+{
+   // Options.
+   public static final String Options =
+      "Options:\n\t-node <address of node to send payments to> (repeatable)" +
+      "\n\t[-connections <connections> (defaults to one per node)]" +
+      "\n\t[-keys <funded keys> (defaults to 100)]" +
+      "\n\t[-coins <coins minted per key> (defaults to 100)]" +
+      "\n\t[-rate <payments per second> (open loop) | -concurrency <outstanding payments> (closed loop; defaults to 16)]" +
+      "\n\t[-duration <seconds> (defaults to 60)]" +
+      "\n\t[-interval <reporting interval in seconds> (defaults to 1)]" +
+      "\n\t[-csv <interval results file> (defaults to loadgen.csv)]" +
+      "\n\t[-hgrm <latency percentile distribution file> (defaults to loadgen.hgrm)]" +
+      "\n\t[-password <password> (for minting; alternatively read from " + Parameters.PASSWORD_FILE + ")]";
+
+   // Result kinds: node result codes, then errors (no response), then
+   // payments not sent for lack of a funded key.
+   public static final String[] RESULTS =
+   { "success", "fail", "invalid", "lock_fail", "duplicate", "time_out", "unknown", "busy", "error", "starved" };
+   private static final int ERROR   = Parameters.BUSY + 1;
+   private static final int STARVED = Parameters.BUSY + 2;
+
+   // Clients, one per connection, and the next to use.
+   private CoinspermiaClient[] clients;
+   private AtomicInteger       nextClient;
+
+   // Funded and empty keys.
+   private ConcurrentLinkedQueue<Balance> funded;
+   private ConcurrentLinkedQueue<Balance> empty;
+
+   // Results: totals, interval counts and latencies (us).
+   private AtomicLongArray totals;
+   private AtomicLongArray counts;
+   private Histogram       latency;
+   private Histogram       intervalLatency;
+   private AtomicLong      submitted;
+
+   // Closed loop workers.
+   private ExecutorService workers;
+
+   // Stop time (ns).
+   private volatile long stop;
+
+   // Constructor.
+   public LoadGenerator(List<String> nodes, int connections, String password)
+   {
+      clients = new CoinspermiaClient[connections];
+      for (int i = 0; i < connections; i++)
+      {
+         // Start each connection at a different node, failing over to the rest.
+         ArrayList<String> order = new ArrayList<String>();
+         for (int j = 0, k = nodes.size(); j < k; j++)
+         {
+            order.add(nodes.get((i + j) % k));
+         }
+         clients[i] = new CoinspermiaClient(order, password);
+      }
+      nextClient      = new AtomicInteger();
+      funded          = new ConcurrentLinkedQueue<Balance>();
+      empty           = new ConcurrentLinkedQueue<Balance>();
+      totals          = new AtomicLongArray(RESULTS.length);
+      counts          = new AtomicLongArray(RESULTS.length);
+      latency         = new Histogram("payment latency", "us");
+      intervalLatency = new Histogram("interval payment latency", "us");
+      submitted       = new AtomicLong();
+   }
+
+
+   // Next client, round robin.
+   private CoinspermiaClient client()
+   {
+      return(clients[(nextClient.getAndIncrement() & 0x7fffffff) % clients.length]);
+   }
+
+
+   // Mint wallet: the funded keys are minted coins, and as many empty keys
+   // are made to pay them to. Returns the number of keys minted.
+   public int mint(int keys, float coins) throws Exception
+   {
+      KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+
+      kpg.initialize(512, SecureRandom.getInstance("SHA1PRNG", "SUN"));
+      ArrayList<CompletableFuture<Integer>> mints    = new ArrayList<CompletableFuture<Integer>>();
+      ArrayList<Balance>                    balances = new ArrayList<Balance>();
+      for (int i = 0; i < keys; i++)
+      {
+         KeyPair pair    = kpg.generateKeyPair();
+         Balance balance = new Balance(pair.getPublic(), pair.getPrivate(), coins);
+         Transaction transaction = new Transaction();
+         transaction.type = Transaction.MINT;
+         transaction.addOutput(balance.publicKey, coins);
+         mints.add(client().submit(transaction));
+         balances.add(balance);
+         pair = kpg.generateKeyPair();
+         empty.add(new Balance(pair.getPublic(), pair.getPrivate(), 0.0f));
+      }
+      int minted = 0;
+      for (int i = 0; i < keys; i++)
+      {
+         int result;
+         try
+         {
+            result = mints.get(i).get();
+         }
+         catch (Exception e)
+         {
+            result = ERROR;
+         }
+         if (result == Parameters.SUCCESS)
+         {
+            funded.add(balances.get(i));
+            minted++;
+         }
+         else
+         {
+            System.err.println("Cannot mint key " + balances.get(i).publicKeyHash + ": " + RESULTS[result]);
+         }
+      }
+      return(minted);
+   }
+
+
+   // Start payment, due at the given time (ns): returns its completion,
+   // or null if no key is funded.
+   private CompletableFuture<Void> pay(long due)
+   {
+      Balance from = funded.poll();
+
+      if (from == null)
+      {
+         record(STARVED, -1);
+         return(null);
+      }
+      Balance to = empty.poll();
+      if (to == null)
+      {
+         funded.add(from);
+         record(STARVED, -1);
+         return(null);
+      }
+      Transaction transaction;
+      try
+      {
+         transaction = CoinspermiaClient.payment(Arrays.asList(from), Arrays.asList(to.publicKey),
+                                                 Arrays.asList(from.coins));
+      }
+      catch (Exception e)
+      {
+         funded.add(from);
+         empty.add(to);
+         record(ERROR, -1);
+         return(null);
+      }
+      submitted.incrementAndGet();
+      CoinspermiaClient client = client();
+      return(client.submit(transaction).handle((result, e) ->
+                                               {
+                                                  int kind = (e != null) ? ERROR : result;
+                                                  record(kind, (System.nanoTime() - due) / 1000);
+                                                  settle(client, kind, from, to);
+                                                  return(null);
+                                               }));
+   }
+
+
+   // Settle keys after payment. A refused payment left them as they were;
+   // after any other failure the payment may yet commit, so the keys'
+   // balances are asked for.
+   private void settle(CoinspermiaClient client, int kind, Balance from, Balance to)
+   {
+      if (kind == Parameters.SUCCESS)
+      {
+         to.coins   = from.coins;
+         from.coins = 0.0f;
+         funded.add(to);
+         empty.add(from);
+         return;
+      }
+      if (kind == Parameters.BUSY)
+      {
+         funded.add(from);
+         empty.add(to);
+         return;
+      }
+      client.balances(Arrays.asList(from.publicKey, to.publicKey)).whenComplete((balances, e) -> resync(from, to, balances));
+   }
+
+
+   // Return keys to the funded or empty keys by their balances, or as they
+   // were if the balances are unknown.
+   private void resync(Balance from, Balance to, float[] balances)
+   {
+      if (balances != null)
+      {
+         from.coins = balances[0];
+         to.coins   = balances[1];
+      }
+      for (Balance balance : Arrays.asList(from, to))
+      {
+         if (balance.coins > 0.0f)
+         {
+            funded.add(balance);
+         }
+         else
+         {
+            empty.add(balance);
+         }
+      }
+   }
+
+
+   // Record payment result and latency (us), if any.
+   private void record(int kind, long us)
+   {
+      if ((kind < 0) || (kind >= RESULTS.length)) { kind = Parameters.UNKNOWN; }
+      totals.incrementAndGet(kind);
+      counts.incrementAndGet(kind);
+      if (us >= 0)
+      {
+         latency.record(us);
+         intervalLatency.record(us);
+      }
+   }
+
+
+   // Run open loop: payments are started at the rate whether or not
+   // earlier ones have completed.
+   public void runOpen(double rate, long duration, long interval, PrintWriter csv) throws Exception
+   {
+      ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+      final long start = System.nanoTime();
+      final AtomicLong started = new AtomicLong();
+
+      stop = start + (duration * 1000000000L);
+      ticker.scheduleAtFixedRate(() ->
+                                 {
+                                    long now = System.nanoTime();
+                                    if (now >= stop) { return; }
+                                    long due = (long)(((now - start) / 1e9) * rate);
+                                    for (long n = started.get(); n < due; n = started.incrementAndGet())
+                                    {
+                                       pay(start + (long)((n / rate) * 1e9));
+                                    }
+                                 }, 0, 1, TimeUnit.MILLISECONDS);
+      report(start, interval, csv);
+      ticker.shutdown();
+   }
+
+
+   // Run closed loop: each of the outstanding payments is followed by
+   // another when it completes.
+   public void runClosed(int concurrency, long duration, long interval, PrintWriter csv) throws Exception
+   {
+      long start = System.nanoTime();
+
+      workers = Executors.newFixedThreadPool(Math.min(concurrency, Runtime.getRuntime().availableProcessors() * 2));
+      stop    = start + (duration * 1000000000L);
+      for (int i = 0; i < concurrency; i++)
+      {
+         workers.execute(this::loop);
+      }
+      report(start, interval, csv);
+      workers.shutdown();
+   }
+
+
+   // Closed loop: pay, then pay again on completion until stopped. Waits
+   // briefly when starved of funded keys.
+   private void loop()
+   {
+      while (System.nanoTime() < stop)
+      {
+         CompletableFuture<Void> payment = pay(System.nanoTime());
+         if (payment != null)
+         {
+            payment.thenRunAsync(this::loop, workers);
+            return;
+         }
+         try
+         {
+            Thread.sleep(1);
+         }
+         catch (InterruptedException e)
+         {
+            return;
+         }
+      }
+   }
+
+
+   // Report intervals until stopped, then let outstanding payments finish.
+   private void report(long start, long interval, PrintWriter csv) throws Exception
+   {
+      StringBuilder header = new StringBuilder("elapsed_s,submitted,completed,tps");
+
+      for (String result : RESULTS)
+      {
+         header.append(",").append(result);
+      }
+      csv.println(header.append(",p50_ms,p90_ms,p99_ms,max_ms"));
+      long last = submitted.get();
+      for (long t = interval; ; t += interval)
+      {
+         long next = Math.min(start + (t * 1000000000L), stop);
+         long wait = (next - System.nanoTime()) / 1000000L;
+         if (wait > 0) { Thread.sleep(wait); }
+         long   sent    = submitted.get();
+         long   done    = 0;
+         long[] n       = new long[RESULTS.length];
+         double seconds = (next - (start + ((t - interval) * 1000000000L))) / 1e9;
+         for (int i = 0; i < RESULTS.length; i++)
+         {
+            n[i] = counts.getAndSet(i, 0);
+            if (i != STARVED) { done += n[i]; }
+         }
+         StringBuilder row = new StringBuilder();
+         row.append(String.format("%.3f", (next - start) / 1e9)).append(",").append(sent - last).append(",").append(done);
+         row.append(",").append(String.format("%.1f", n[Parameters.SUCCESS] / seconds));
+         for (int i = 0; i < RESULTS.length; i++)
+         {
+            row.append(",").append(n[i]);
+         }
+         row.append(",").append(ms(intervalLatency.percentile(50.0))).append(",").append(ms(intervalLatency.percentile(90.0)));
+         row.append(",").append(ms(intervalLatency.percentile(99.0))).append(",").append(ms(intervalLatency.max()));
+         csv.println(row);
+         csv.flush();
+         intervalLatency.reset();
+         last = sent;
+         if (next >= stop) { break; }
+      }
+      long elapsed = System.nanoTime() - start;
+      long settle  = System.currentTimeMillis() + Parameters.CLIENT_TRANSACTION_TIME_OUT;
+      while ((completed() < submitted.get()) && (System.currentTimeMillis() < settle))
+      {
+         Thread.sleep(100);
+      }
+      summary(elapsed / 1e9);
+   }
+
+
+   // Completed payments.
+   private long completed()
+   {
+      long n = 0;
+
+      for (int i = 0; i < RESULTS.length; i++)
+      {
+         if (i != STARVED) { n += totals.get(i); }
+      }
+      return(n);
+   }
+
+
+   // Microseconds as milliseconds.
+   private static String ms(long us)
+   {
+      return(String.format("%.3f", us / 1000.0));
+   }
+
+
+   // Print summary.
+   private void summary(double seconds)
+   {
+      long n = completed();
+
+      System.out.println("Payments: submitted=" + submitted.get() + ", completed=" + n + ", throughput=" +
+                         String.format("%.1f", totals.get(Parameters.SUCCESS) / seconds) + " successes/s");
+      StringBuilder ratios = new StringBuilder("Results:");
+      for (int i = 0; i < RESULTS.length; i++)
+      {
+         if (totals.get(i) == 0) { continue; }
+         ratios.append(" ").append(RESULTS[i]).append("=").append(totals.get(i));
+         if (i != STARVED)
+         {
+            ratios.append(" (").append(String.format("%.3f", n > 0 ? (double)totals.get(i) / n : 0.0)).append(")");
+         }
+      }
+      System.out.println(ratios);
+      System.out.println(latency);
+   }
+
+
+   // Write latency percentile distribution in the HdrHistogram text format,
+   // in milliseconds.
+   public void writeDistribution(PrintWriter out)
+   {
+      long n = latency.count();
+
+      out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+      out.println();
+      long seen = 0;
+      for (int i = 0, j = latency.numBuckets(); i < j && seen < n; i++)
+      {
+         long count = latency.bucketCount(i);
+         if (count == 0) { continue; }
+         seen += count;
+         double percentile = (double)seen / (double)n;
+         long   value      = Math.min(Histogram.bucketValue(i), latency.max());
+         if (seen < n)
+         {
+            out.println(String.format("%12.3f %2.12f %10d %14.2f", value / 1000.0, percentile, seen, 1.0 / (1.0 - percentile)));
+         }
+         else
+         {
+            out.println(String.format("%12.3f %2.12f %10d", value / 1000.0, percentile, seen));
+         }
+      }
+      double mean     = latency.mean();
+      double variance = 0.0;
+      for (int i = 0, j = latency.numBuckets(); i < j; i++)
+      {
+         long count = latency.bucketCount(i);
+         if (count > 0)
+         {
+            double d = Math.min(Histogram.bucketValue(i), latency.max()) - mean;
+            variance += count * d * d;
+         }
+      }
+      if (n > 0) { variance /= n; }
+      out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]", mean / 1000.0, Math.sqrt(variance) / 1000.0));
+      out.println(String.format("#[Max     = %12.3f, Total count    = %12d]", latency.max() / 1000.0, n));
+      out.flush();
+   }
+
+
+   // Close connections.
+   public void close()
+   {
+      for (CoinspermiaClient client : clients)
+      {
+         client.close();
+      }
+   }
+
+
+   // Main.
+   public static void main(String[] args) throws Exception
+   {
+      ArrayList<String> nodes       = new ArrayList<String>();
+      int               connections = 0;
+      int               keys        = 100;
+      float             coins       = 100.0f;
+      double            rate        = 0.0;
+      int               concurrency = 16;
+      long              duration    = 60;
+      long              interval    = 1;
+      String            csvFile     = "loadgen.csv";
+      String            hgrmFile    = "loadgen.hgrm";
+      String            password    = null;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if ((i + 1) == args.length)
+         {
+            System.err.println(Options);
+            System.exit(1);
+         }
+         if (args[i].equals("-node"))
+         {
+            nodes.add(args[++i]);
+         }
+         else if (args[i].equals("-connections"))
+         {
+            connections = Integer.parseInt(args[++i]);
+         }
+         else if (args[i].equals("-keys"))
+         {
+            keys = Integer.parseInt(args[++i]);
+         }
+         else if (args[i].equals("-coins"))
+         {
+            coins = Float.parseFloat(args[++i]);
+         }
+         else if (args[i].equals("-rate"))
+         {
+            rate = Double.parseDouble(args[++i]);
+         }
+         else if (args[i].equals("-concurrency"))
+         {
+            concurrency = Integer.parseInt(args[++i]);
+         }
+         else if (args[i].equals("-duration"))
+         {
+            duration = Long.parseLong(args[++i]);
+         }
+         else if (args[i].equals("-interval"))
+         {
+            interval = Long.parseLong(args[++i]);
+         }
+         else if (args[i].equals("-csv"))
+         {
+            csvFile = args[++i];
+         }
+         else if (args[i].equals("-hgrm"))
+         {
+            hgrmFile = args[++i];
+         }
+         else if (args[i].equals("-password"))
+         {
+            password = args[++i];
+         }
+         else
+         {
+            System.err.println(Options);
+            System.exit(1);
+         }
+      }
+      if (connections == 0) { connections = nodes.size(); }
+      if (nodes.isEmpty() || (connections < 1) || (keys < 1) || (coins <= 0.0f) || (rate < 0.0) ||
+          (concurrency < 1) || (duration < 1) || (interval < 1))
+      {
+         System.err.println(Options);
+         System.exit(1);
+      }
+      if ((password == null) && new File(Parameters.PASSWORD_FILE).exists())
+      {
+         try (BufferedReader in = new BufferedReader(new FileReader(Parameters.PASSWORD_FILE)))
+         {
+            password = in.readLine();
+         }
+      }
+
+      LoadGenerator generator = new LoadGenerator(nodes, connections, password);
+      System.out.println("Minting " + keys + " keys over " + connections + " connections to " + nodes.size() + " nodes");
+      int minted = generator.mint(keys, coins);
+      if (minted == 0)
+      {
+         System.err.println("No keys minted");
+         generator.close();
+         System.exit(1);
+      }
+      try (PrintWriter csv = new PrintWriter(new FileWriter(csvFile)))
+      {
+         if (rate > 0.0)
+         {
+            System.out.println("Open loop: " + rate + " payments/s for " + duration + "s with " + minted + " funded keys");
+            generator.runOpen(rate, duration, interval, csv);
+         }
+         else
+         {
+            System.out.println("Closed loop: " + concurrency + " outstanding payments for " + duration + "s with " + minted + " funded keys");
+            generator.runClosed(concurrency, duration, interval, csv);
+         }
+      }
+      try (PrintWriter hgrm = new PrintWriter(new FileWriter(hgrmFile)))
+      {
+         generator.writeDistribution(hgrm);
+      }
+      generator.close();
+   }
+}
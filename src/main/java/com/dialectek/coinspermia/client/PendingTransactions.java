@@ -0,0 +1,196 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Pending transactions.
+ * Lets a client session have many transaction requests outstanding. Each
+ * request is registered by transaction id before it is sent, also carried
+ * as the message id, and the node's response, which echoes both, completes
+ * the request's future. Other requests the node answers with the request
+ * message, such as census requests, are registered by a new message id.
+ * Requests not answered within the time-out, and those still pending when
+ * the session closes, complete exceptionally.
+ */
+
+package com.dialectek.coinspermia.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import javax.websocket.Session;
+
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageEncoder;
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class PendingTransactions
+{
+   // Pending request.
+   private static class Request
+   {
+      CompletableFuture<Message> response;
+      long                       sent;
+
+      Request()
+      {
+         response = new CompletableFuture<Message>();
+         sent     = System.currentTimeMillis();
+      }
+   }
+
+   // Requests by id.
+   private ConcurrentHashMap<UUID, Request> requests;
+
+   // Session.
+   private Session session;
+
+   // Response time-out (ms).
+   public long timeOut;
+
+   // Time-out sweep.
+   private TimerTask sweep;
+   private static Timer timer = new Timer("pending-transactions", true);
+
+   // Constructor.
+   public PendingTransactions(Session session, long timeOut)
+   {
+      this.session = session;
+      this.timeOut = timeOut;
+      requests     = new ConcurrentHashMap<UUID, Request>();
+      sweep        = new TimerTask()
+      {
+         public void run()
+         {
+            expire();
+         }
+      };
+      timer.schedule(sweep, Parameters.PENDING_TRANSACTIONS_SWEEP, Parameters.PENDING_TRANSACTIONS_SWEEP);
+   }
+
+
+   // Pending transactions of session, created on first use.
+   public static PendingTransactions of(Session session)
+   {
+      Map<String, Object> properties = session.getUserProperties();
+
+      synchronized (properties)
+      {
+         PendingTransactions pending = (PendingTransactions)properties.get(Parameters.PENDING_TRANSACTIONS_PROPERTY);
+         if (pending == null)
+         {
+            pending = new PendingTransactions(session, Parameters.CLIENT_TRANSACTION_TIME_OUT);
+            properties.put(Parameters.PENDING_TRANSACTIONS_PROPERTY, pending);
+         }
+         return(pending);
+      }
+   }
+
+
+   // Pending transactions of session, if any.
+   public static PendingTransactions get(Session session)
+   {
+      return((PendingTransactions)session.getUserProperties().get(Parameters.PENDING_TRANSACTIONS_PROPERTY));
+   }
+
+
+   // Submit transaction: the future completes with the node's response.
+   // The password is needed for a mint transaction.
+   public CompletableFuture<Message> submit(Transaction transaction, String password)
+   {
+      Message message = new Message(Message.TRANSACTION_REQUEST);
+
+      message.id          = transaction.id;
+      message.transaction = transaction;
+      if (transaction.type == Transaction.MINT)
+      {
+         message.password = password;
+      }
+      return(send(message));
+   }
+
+
+   // Send request, by a new message id if it has none: the future
+   // completes with the node's response.
+   public CompletableFuture<Message> send(Message message)
+   {
+      Request request = new Request();
+
+      if (message.id == null) { message.id = UUID.randomUUID(); }
+      if (requests.putIfAbsent(message.id, request) != null)
+      {
+         request.response.completeExceptionally(
+            new IllegalStateException("Duplicate pending request id=" + message.id));
+         return(request.response);
+      }
+      try
+      {
+         MessageEncoder.send(session, message);
+      }
+      catch (Exception e)
+      {
+         requests.remove(message.id, request);
+         request.response.completeExceptionally(e);
+      }
+      return(request.response);
+   }
+
+
+   // Complete pending request with response: returns false if the response
+   // matches no pending request.
+   public boolean complete(Message message)
+   {
+      UUID id = message.id;
+
+      if ((id == null) && (message.transaction != null)) { id = message.transaction.id; }
+      if (id == null) { return(false); }
+      Request request = requests.remove(id);
+      if (request == null) { return(false); }
+      request.response.complete(message);
+      return(true);
+   }
+
+
+   // Fail requests pending longer than the time-out.
+   public void expire()
+   {
+      long now = System.currentTimeMillis();
+
+      for (Map.Entry<UUID, Request> entry : requests.entrySet())
+      {
+         Request request = entry.getValue();
+         if (((now - request.sent) >= timeOut) && requests.remove(entry.getKey(), request))
+         {
+            request.response.completeExceptionally(
+               new TimeoutException("No response for request id=" + entry.getKey()));
+         }
+      }
+   }
+
+
+   // Close: fail all pending requests.
+   public void close()
+   {
+      sweep.cancel();
+      for (UUID id : requests.keySet())
+      {
+         Request request = requests.remove(id);
+         if (request != null)
+         {
+            request.response.completeExceptionally(new IOException("Session closed"));
+         }
+      }
+   }
+
+
+   // Number of pending requests.
+   public int size()
+   {
+      return(requests.size());
+   }
+}
@@ -0,0 +1,176 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Ledger anti-entropy.
+ * Periodically a node compares its UTXO Merkle tree with a random peer's,
+ * walking down from the root only into subtrees whose digests differ,
+ * several levels per round trip. At the buckets that differ the peer sends
+ * its UTXOs and spent tombstones there, and the node reconciles its ledger
+ * with them. The cost of a sync grows with the difference between the two
+ * ledgers, not with their size.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.websocket.Session;
+
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageEncoder;
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class AntiEntropy
+{
+   // Metrics.
+   public AtomicLong syncs;
+   public AtomicLong rounds;
+   public AtomicLong buckets;
+   public AtomicLong received;
+   public AtomicLong taken;
+   public AtomicLong spent;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(AntiEntropy.class .getName());
+
+   // Constructor.
+   public AntiEntropy()
+   {
+      syncs    = new AtomicLong();
+      rounds   = new AtomicLong();
+      buckets  = new AtomicLong();
+      received = new AtomicLong();
+      taken    = new AtomicLong();
+      spent    = new AtomicLong();
+   }
+
+
+   // Start sync with peer from the tree root.
+   public void start(String peer)
+   {
+      Node.node.ledger.pruneSpent(System.currentTimeMillis() - Parameters.ANTI_ENTROPY_TOMBSTONE_TIME_OUT);
+      syncs.incrementAndGet();
+      send(peer, new int[] { 1 }, 1, Node.node.ledger.utxos.merkle.digests());
+   }
+
+
+   // Send sync request for tree nodes with their digests.
+   private void send(String peer, int[] nodes, int n, long[] tree)
+   {
+      Message message = new Message(Message.LEDGER_SYNC_REQUEST);
+
+      message.sender    = Node.node.address;
+      message.password  = Node.node.password;
+      message.treeNodes = Arrays.copyOf(nodes, n);
+      message.digests   = new long[n];
+      for (int i = 0; i < n; i++)
+      {
+         message.digests[i] = tree[nodes[i]];
+      }
+      rounds.incrementAndGet();
+      Node.node.peerSessions.sendAsync(peer, message, "Cannot send ledger sync request to peer " + peer);
+   }
+
+
+   // Sync request from peer.
+   // For each requested node whose digest differs from ours, respond with
+   // our digests of its descendants some levels down, or, for a bucket,
+   // with its contents.
+   public static void request(Message message, Session session)
+   {
+      long[] tree    = Node.node.ledger.utxos.merkle.digests();
+      int[]  nodes   = new int[64];
+      long[] digests = new long[64];
+      int    n       = 0;
+      int[]  diff    = new int[Parameters.ANTI_ENTROPY_MAX_BUCKETS];
+      int    m       = 0;
+
+      for (int i = 0; (message.treeNodes != null) && (i < message.treeNodes.length); i++)
+      {
+         int node = message.treeNodes[i];
+         if ((node < 1) || (node >= tree.length) || (tree[node] == message.digests[i])) { continue; }
+         if (node >= UTXOMerkleTree.BUCKETS)
+         {
+            if (m < diff.length) { diff[m++] = node - UTXOMerkleTree.BUCKETS; }
+            continue;
+         }
+         int level = 31 - Integer.numberOfLeadingZeros(node);
+         int down  = Math.min(Parameters.ANTI_ENTROPY_LEVELS_PER_ROUND, UTXOMerkleTree.BUCKET_BITS - level);
+         int first = node << down;
+         int count = 1 << down;
+         if ((n + count) > nodes.length)
+         {
+            nodes   = Arrays.copyOf(nodes, Math.max(nodes.length * 2, n + count));
+            digests = Arrays.copyOf(digests, nodes.length);
+         }
+         for (int j = 0; j < count; j++)
+         {
+            nodes[n]   = first + j;
+            digests[n] = tree[first + j];
+            n++;
+         }
+      }
+      message.type      = Message.LEDGER_SYNC_RESPONSE;
+      message.sender    = Node.node.address;
+      message.password  = Node.node.password;
+      message.treeNodes = Arrays.copyOf(nodes, n);
+      message.digests   = Arrays.copyOf(digests, n);
+      if (m > 0)
+      {
+         Transaction[] contents = Node.node.ledger.bucketContents(Arrays.copyOf(diff, m));
+         message.transactions = new ArrayList<Transaction>(Arrays.asList(contents));
+      }
+      try
+      {
+         MessageEncoder.send(session, message);
+      }
+      catch (Exception e)
+      {
+         logger.severe("Cannot send ledger sync response, session id=" + session.getId() + ": " + e.getMessage());
+      }
+   }
+
+
+   // Sync response from peer.
+   // Reconcile bucket contents, then continue into the nodes that differ.
+   public void response(Message message)
+   {
+      if ((message.transactions != null) && (message.transactions.size() == 2))
+      {
+         ArrayList<Transaction.Output> live      = message.transactions.get(0).outputs;
+         ArrayList<Transaction.Output> spentUTXO = message.transactions.get(1).outputs;
+         received.addAndGet(live.size() + spentUTXO.size());
+         Transaction[] changes = Node.node.ledger.reconcile(live, spentUTXO);
+         taken.addAndGet(changes[0].outputs.size());
+         spent.addAndGet(changes[1].outputs.size());
+      }
+      if (message.treeNodes == null) { return; }
+      long[] tree  = Node.node.ledger.utxos.merkle.digests();
+      int[]  nodes = new int[message.treeNodes.length];
+      int    n     = 0;
+      for (int i = 0; i < message.treeNodes.length; i++)
+      {
+         int node = message.treeNodes[i];
+         if ((node < 1) || (node >= tree.length) || (tree[node] == message.digests[i])) { continue; }
+         nodes[n++] = node;
+         if (node >= UTXOMerkleTree.BUCKETS) { buckets.incrementAndGet(); }
+      }
+      if (n > 0)
+      {
+         send(message.sender, nodes, n, tree);
+      }
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      return("Anti-entropy: syncs=" + syncs.get() + ", round trips=" + rounds.get() + ", differing buckets=" +
+             buckets.get() + ", UTXOs received=" + received.get() + ", taken=" + taken.get() +
+             ", spent=" + spent.get());
+   }
+}
@@ -12,12 +12,13 @@ import com.dialectek.coinspermia.shared.MessageEncoder;
 import com.dialectek.coinspermia.shared.Parameters;
 
 import javax.websocket.CloseReason;
+import javax.websocket.DecodeException;
 import javax.websocket.OnClose;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.Session;
-import javax.websocket.CloseReason.CloseCodes;
 
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 @javax.websocket.ClientEndpoint(encoders = MessageEncoder.class, decoders = MessageDecoder.class )
@@ -31,74 +32,101 @@ public class ClientEndpoint
    }
 
 
+   @OnMessage
+   public void onMessage(ByteBuffer buffer, Session session)
+   {
+      // The peer answers in binary: use binary from now on.
+      MessageEncoder.setBinary(session);
+      try
+      {
+         onMessage(MessageDecoder.Binary.fromByteBuffer(buffer), session);
+      }
+      catch (DecodeException e)
+      {
+         logger.severe("Cannot decode binary message, session id=" + session.getId() + ": " + e.getMessage());
+      }
+   }
+
+
    @OnMessage
    public void onMessage(Message message, Session session)
    {
+      if (message.sender != null)
+      {
+         Node.node.peerHealth.seen(message.sender);
+      }
       switch (message.type)
       {
       case Message.LOCK_RESPONSE:
-         if (Node.node.validPassword(message.password))
-         {
-            TransactionQuorum tq = null;
-            synchronized (Node.node.transactionQuorums)
-            {
-               tq = Node.node.transactionQuorums.get(message.id);
-            }
-            if (tq != null) { tq.lockResponse(message); }
-            try
-            {
-               session.close(new CloseReason(CloseCodes.NORMAL_CLOSURE, "Session close"));
-            }
-            catch (Exception e)
-            {
-               logger.severe("Cannot close session, message type=" + message.type + ", session id=" + session.getId() + ": " + e.getMessage());
-            }
-         }
-         else
-         {
-            String sender = message.sender;
-            if (sender == null) { message.sender = "null"; }
-            logger.severe("Unauthorized message response, message type=" + message.type + ", sender=" + sender + ", session id=" + session.getId());
-         }
+      case Message.COMMIT_RESPONSE:
+      case Message.LEDGER_SYNC_RESPONSE:
+      case Message.SNAPSHOT_RESPONSE:
+      case Message.CONNECTION_RESPONSE:
+         // Handle on the session's peer lane: handling commits, installs
+         // and saves, and waits for the disk.
+         Node.node.dispatcher.dispatchPeer(message, session, () -> handle(message, session));
+         break;
+
+      default:
+         logger.warning("Unknown message type=" + message.type + ", session id=" + session.getId());
+      }
+   }
+
+
+   // Handle response.
+   private void handle(Message message, Session session)
+   {
+      if (!authorized(message, session)) { return; }
+      switch (message.type)
+      {
+      case Message.LOCK_RESPONSE:
+         TransactionQuorum tq = Node.node.transactionQuorums.get(message.id);
+         if (tq != null) { tq.lockResponse(message); }
+         break;
+
+      case Message.COMMIT_RESPONSE:
+         Node.node.gossip.resend(message);
+         break;
+
+      case Message.LEDGER_SYNC_RESPONSE:
+         Node.node.antiEntropy.response(message);
+         break;
+
+      case Message.SNAPSHOT_RESPONSE:
+         Node.node.snapshotTransfer.response(message);
          break;
 
       case Message.CONNECTION_RESPONSE:
-         if (Node.node.validPassword(message.password))
+         if (message.result == Parameters.SUCCESS)
          {
-            if (message.result == Parameters.SUCCESS)
+            synchronized (Node.node.connectedPeers)
             {
-               synchronized (Node.node.connectedPeers)
+               for (String peer : message.peers)
                {
-                  for (String peer : message.peers)
-                  {
-                     Node.node.addPeer(peer);
-                  }
-                  Node.node.calculatePeerConnectionDensity();
+                  Node.node.addPeer(peer);
                }
+               Node.node.calculatePeerConnectionDensity();
             }
-            try
-            {
-               session.close(new CloseReason(CloseCodes.NORMAL_CLOSURE, "Session close"));
-            }
-            catch (Exception e)
-            {
-               logger.severe("Cannot close session, message type=" + message.type + ", session id=" + session.getId() + ": " + e.getMessage());
-            }
-         }
-         else
-         {
-            String sender = message.sender;
-            if (sender == null) { message.sender = "null"; }
-            logger.severe("Unauthorized message response, message type=" + message.type + ", sender=" + sender + ", session id=" + session.getId());
+
+            // Joining with an empty ledger: fetch the peer's.
+            Node.node.snapshotTransfer.start(message.sender);
          }
          break;
-
-      default:
-         logger.warning("Unknown message type=" + message.type + ", session id=" + session.getId());
       }
    }
 
 
+   // Response authorized by node password? Logs an unauthorized response.
+   private boolean authorized(Message message, Session session)
+   {
+      if (Node.node.validPassword(message.password)) { return(true); }
+      String sender = message.sender;
+      if (sender == null) { sender = "null"; }
+      logger.severe("Unauthorized message response, message type=" + message.type + ", sender=" + sender + ", session id=" + session.getId());
+      return(false);
+   }
+
+
    @OnClose
    public void onClose(Session session, CloseReason closeReason)
    {
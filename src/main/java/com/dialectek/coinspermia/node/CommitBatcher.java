@@ -0,0 +1,187 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Commit batcher.
+ * Groups commits bound for a peer into one commit batch message, sent when
+ * the batch is full or when its first commit has waited the linger time.
+ * A batch of one is sent as a plain commit; a linger of zero disables
+ * batching.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dialectek.coinspermia.shared.Histogram;
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class CommitBatcher
+{
+   // Pending batch for a peer: the ids of its commits in order, and the
+   // transactions of those sent in full.
+   private class Batch implements Runnable
+   {
+      String                   peer;
+      ArrayList<Transaction>   transactions;
+      ArrayList<UUID>          ids;
+      long[]                   enqueued;
+      int                      size;
+      TimeoutScheduler.Timeout timer;
+
+      Batch(String peer)
+      {
+         this.peer    = peer;
+         transactions = new ArrayList<Transaction>();
+         ids          = new ArrayList<UUID>();
+         enqueued     = new long[maxSize];
+         size         = 0;
+      }
+
+
+      // Linger expired.
+      public void run()
+      {
+         Message message;
+
+         synchronized (this)
+         {
+            message = drain();
+         }
+         if (message != null) { send(peer, message); }
+      }
+
+
+      // Drain batch into message: caller holds the batch lock.
+      Message drain()
+      {
+         if (size == 0) { return(null); }
+         Message message;
+         if (size == 1)
+         {
+            message = newMessage(Message.COMMIT_REQUEST);
+            if (transactions.size() == 1)
+            {
+               message.transaction = transactions.get(0);
+               message.id          = message.transaction.id;
+            }
+            else
+            {
+               message.id = ids.get(0);
+            }
+            transactions.clear();
+            ids.clear();
+         }
+         else
+         {
+            message              = newMessage(Message.COMMIT_BATCH_REQUEST);
+            message.transactions = transactions;
+            message.ids          = ids;
+            transactions         = new ArrayList<Transaction>();
+            ids                  = new ArrayList<UUID>();
+         }
+         long now = System.nanoTime();
+         batchSize.record(size);
+         for (int i = 0; i < size; i++)
+         {
+            delay.record((now - enqueued[i]) / 1000);
+         }
+         size = 0;
+         if (timer != null)
+         {
+            timer.cancel();
+            timer = null;
+         }
+         return(message);
+      }
+   }
+
+   // Pending batches by peer.
+   private ConcurrentHashMap<String, Batch> batches;
+
+   // Linger time (ms) and maximum batch size.
+   public int linger;
+   public int maxSize;
+
+   // Metrics.
+   public Histogram  batchSize;
+   public Histogram  delay;
+   public AtomicLong messages;
+
+   // Constructor.
+   public CommitBatcher(int linger, int maxSize)
+   {
+      this.linger  = linger;
+      this.maxSize = maxSize;
+      batches      = new ConcurrentHashMap<String, Batch>();
+      batchSize    = new Histogram("commit batch size", "commits");
+      delay        = new Histogram("commit batch delay", "us");
+      messages     = new AtomicLong();
+   }
+
+
+   // Add commit for peer, by id if the peer has the transaction cached.
+   public void add(String peer, Transaction transaction, boolean byId)
+   {
+      Message message = null;
+
+      if (linger == 0)
+      {
+         message    = newMessage(Message.COMMIT_REQUEST);
+         message.id = transaction.id;
+         if (!byId) { message.transaction = transaction; }
+         send(peer, message);
+         return;
+      }
+      Batch batch = batches.computeIfAbsent(peer, Batch::new);
+      synchronized (batch)
+      {
+         batch.ids.add(transaction.id);
+         if (!byId)
+         {
+            batch.transactions.add(transaction);
+         }
+         batch.enqueued[batch.size++] = System.nanoTime();
+         if (batch.size == maxSize)
+         {
+            message = batch.drain();
+         }
+         else if (batch.size == 1)
+         {
+            batch.timer = Node.node.timeouts.schedule(batch, linger);
+         }
+      }
+      if (message != null) { send(peer, message); }
+   }
+
+
+   // New commit message.
+   private Message newMessage(int type)
+   {
+      Message message = new Message(type);
+
+      message.sender   = Node.node.address;
+      message.password = Node.node.password;
+      return(message);
+   }
+
+
+   // Send message to peer.
+   private void send(String peer, Message message)
+   {
+      messages.incrementAndGet();
+      Node.node.peerSessions.sendAsync(peer, message,
+                                       "Cannot propagate transaction commit to peer " + peer);
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      return("Commit batches: linger=" + linger + "ms, max size=" + maxSize + ", messages=" + messages.get() +
+             "\n\t" + batchSize + "\n\t" + delay);
+   }
+}
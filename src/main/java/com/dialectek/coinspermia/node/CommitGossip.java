@@ -0,0 +1,269 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Commit gossip.
+ * Disseminates committed transactions: a node forwards a commit the first
+ * time it sees the transaction id, to a random subset of its peers (the
+ * fanout), and drops later copies. A fanout of zero forwards to all peers.
+ * Commits bound for the same peer are batched. Commits sent by id are kept
+ * a while, so a peer whose cached copy expired can ask for them in full.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.websocket.Session;
+
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageEncoder;
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class CommitGossip
+{
+   // Peers forwarded to per commit (0 = all).
+   public int fanout;
+
+   // Seen transaction ids.
+   public SeenFilter seen;
+
+   // Outbound commit batches.
+   public CommitBatcher batcher;
+
+   // Commits sent by id, for resending in full.
+   public TransactionCache resends;
+
+   // Metrics.
+   public AtomicLong originated;
+   public AtomicLong received;
+   public AtomicLong duplicates;
+   public AtomicLong sends;
+   public AtomicLong resent;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(CommitGossip.class .getName());
+
+   // Constructor.
+   public CommitGossip(int fanout, int seenCapacity, double seenFalsePositiveRate,
+                       int batchLinger, int maxBatchSize)
+   {
+      this.fanout = fanout;
+      seen        = new SeenFilter(seenCapacity, seenFalsePositiveRate);
+      batcher     = new CommitBatcher(batchLinger, maxBatchSize);
+      resends     = new TransactionCache(Parameters.COMMIT_RESEND_TIME_OUT);
+      originated  = new AtomicLong();
+      received    = new AtomicLong();
+      duplicates  = new AtomicLong();
+      sends       = new AtomicLong();
+      resent      = new AtomicLong();
+   }
+
+
+   // Originate commit of transaction.
+   public void originate(UUID id)
+   {
+      originated.incrementAndGet();
+      seen.add(id);
+   }
+
+
+   // Receive commit or commit batch from peer.
+   // Transactions not seen before are applied as one ledger batch, in the
+   // order they were committed, and those that apply are forwarded.
+   // Transactions sent by id are taken from the transaction cache; the
+   // ids of those no longer cached are sent back in a commit response, for
+   // the sender to resend in full.
+   // A transaction is marked seen once applied or found in the ledger.
+   // Committed transactions always apply: one that arrives before the
+   // commit creating its inputs still adds its outputs, and anti-entropy
+   // with peers later settles its inputs.
+   public void receive(Message message, Session session)
+   {
+      ArrayList<Transaction> batch   = new ArrayList<Transaction>();
+      ArrayList<UUID>        missing = new ArrayList<UUID>();
+
+      if (message.type == Message.COMMIT_REQUEST)
+      {
+         if (message.transaction != null)
+         {
+            Node.node.transactionCache.remove(message.transaction.id);
+            add(batch, message.transaction);
+         }
+         else
+         {
+            take(batch, missing, message.id);
+         }
+      }
+      else
+      {
+         if (message.ids != null)
+         {
+            int next = 0;
+            for (UUID id : message.ids)
+            {
+               if ((message.transactions != null) && (next < message.transactions.size()) &&
+                   message.transactions.get(next).id.equals(id))
+               {
+                  Transaction transaction = message.transactions.get(next++);
+                  Node.node.transactionCache.remove(transaction.id);
+                  add(batch, transaction);
+               }
+               else
+               {
+                  take(batch, missing, id);
+               }
+            }
+         }
+      }
+      if (!missing.isEmpty()) { resendRequest(missing, session); }
+      if (batch.isEmpty() || Node.node.snapshotTransfer.buffer(batch)) { return; }
+      int[]             results = Node.node.ledger.commitBatch(batch);
+      ArrayList<String> exclude = new ArrayList<String>();
+      exclude.add(message.sender);
+      for (int i = 0, j = batch.size(); i < j; i++)
+      {
+         Transaction transaction = batch.get(i);
+         if ((results[i] == Parameters.SUCCESS) || (results[i] == Parameters.DUPLICATE))
+         {
+            seen.add(transaction.id);
+         }
+         if (results[i] == Parameters.SUCCESS)
+         {
+            send(transaction, false, select(exclude));
+         }
+      }
+   }
+
+
+   // Add received transaction to batch unless seen.
+   private void add(ArrayList<Transaction> batch, Transaction transaction)
+   {
+      if (transaction == null) { return; }
+      received.incrementAndGet();
+      if (seen.contains(transaction.id))
+      {
+         duplicates.incrementAndGet();
+      }
+      else
+      {
+         batch.add(transaction);
+      }
+   }
+
+
+   // Add cached transaction to batch unless seen, noting it missing if
+   // not cached.
+   private void take(ArrayList<Transaction> batch, ArrayList<UUID> missing, UUID id)
+   {
+      Transaction transaction = Node.node.transactionCache.take(id);
+
+      if (transaction != null)
+      {
+         add(batch, transaction);
+      }
+      else if ((id != null) && !seen.contains(id))
+      {
+         missing.add(id);
+      }
+   }
+
+
+   // Ask sender to resend commits in full.
+   private void resendRequest(ArrayList<UUID> missing, Session session)
+   {
+      Message message = new Message(Message.COMMIT_RESPONSE);
+
+      message.sender   = Node.node.address;
+      message.password = Node.node.password;
+      message.result   = Parameters.UNKNOWN;
+      message.ids      = missing;
+      try
+      {
+         MessageEncoder.send(session, message);
+      }
+      catch (Exception e)
+      {
+         logger.warning("Cannot request commit resend, session id=" + session.getId() + ": " + e.getMessage());
+      }
+   }
+
+
+   // Resend commits asked for by peer in full. Those no longer kept are
+   // left to anti-entropy.
+   public void resend(Message message)
+   {
+      if ((message.sender == null) || (message.ids == null)) { return; }
+      for (UUID id : message.ids)
+      {
+         Transaction transaction = resends.get(id);
+         if (transaction != null)
+         {
+            resent.incrementAndGet();
+            batcher.add(message.sender, transaction, false);
+         }
+      }
+   }
+
+
+   // Select peers to forward commit to, excluding given peers.
+   public ArrayList<String> select(Collection<String> exclude)
+   {
+      ArrayList<String> peers = new ArrayList<String>();
+
+      synchronized (Node.node.connectedPeers)
+      {
+         for (String peer : Node.node.connectedPeers)
+         {
+            if ((exclude == null) || !exclude.contains(peer))
+            {
+               peers.add(peer);
+            }
+         }
+      }
+      if ((fanout > 0) && (peers.size() > fanout))
+      {
+         // Partial Fisher-Yates shuffle.
+         for (int i = 0; i < fanout; i++)
+         {
+            int    j    = i + Node.node.randomizer.nextInt(peers.size() - i);
+            String peer = peers.get(j);
+            peers.set(j, peers.get(i));
+            peers.set(i, peer);
+         }
+         peers.subList(fanout, peers.size()).clear();
+      }
+      return(peers);
+   }
+
+
+   // Send commit to peers, by id to peers that have it cached.
+   public void send(Transaction transaction, boolean byId, ArrayList<String> peers)
+   {
+      if (byId && !peers.isEmpty()) { resends.put(transaction); }
+      for (int i = 0, j = peers.size(); i < j; i++)
+      {
+         sends.incrementAndGet();
+         batcher.add(peers.get(i), transaction, byId);
+      }
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      long o = originated.get();
+      long r = received.get();
+      long s = sends.get();
+      long m = 0;
+
+      if (o > 0) { m = s / o; }
+      return("Commit gossip: fanout=" + (fanout > 0 ? fanout + "" : "all") + ", originated=" + o +
+             ", received=" + r + ", duplicates=" + duplicates.get() + ", sends=" + s + ", resent=" + resent.get() +
+             ", sends per originated commit=" + m + ", seen filter=" + (seen.memory() / 1024) + "KB");
+   }
+}
@@ -0,0 +1,247 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Double spend stress test.
+ * Checks that the striped ledger locks let no UTXO be spent twice under
+ * contention. A few one-coin UTXOs are minted, and many threads repeatedly
+ * pay a randomly chosen live UTXO to a fresh key by validate, lock and
+ * commit, as a node does, so that threads race to spend the same UTXOs.
+ * Each key is funded at most once, so a key spent by two commits is a
+ * double spend. When the fresh keys run out, the ledger must hold as many
+ * UTXOs and coins as were minted, each on the key last paid in its slot.
+ *
+ * Usage:
+ * java com.dialectek.coinspermia.node.DoubleSpendStress
+ *    [-threads <paying threads>] [-utxos <live UTXOs>] [-keys <keys>]
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+import com.dialectek.coinspermia.shared.Utils;
+
+public class DoubleSpendStress
+{
+   // Options.
+   public static final String Options =
+      "Options:\n\t[-threads <paying threads> (defaults to 16)]" +
+      "\n\t[-utxos <live UTXOs> (defaults to 64)]" +
+      "\n\t[-keys <keys> (defaults to 3000)]";
+
+   // Paying threads, live UTXOs and keys.
+   private int threads;
+   private int utxos;
+   private int keys;
+
+   // Key pairs.
+   private KeyPair[] pairs;
+
+   // Key of the UTXO in each slot, next fresh key, and spends of each key.
+   private AtomicIntegerArray slots;
+   private AtomicInteger      fresh;
+   private AtomicIntegerArray spends;
+
+   // Counts.
+   private AtomicInteger commits;
+   private AtomicInteger conflicts;
+   private AtomicInteger doubleSpends;
+
+   // Ledger.
+   private Ledger ledger;
+
+   // Constructor.
+   public DoubleSpendStress(int threads, int utxos, int keys)
+   {
+      this.threads = threads;
+      this.utxos   = utxos;
+      this.keys    = keys;
+   }
+
+
+   // Run: returns the results.
+   public String run() throws Exception
+   {
+      generateKeys();
+      ledger       = new Ledger();
+      slots        = new AtomicIntegerArray(utxos);
+      fresh        = new AtomicInteger(utxos);
+      spends       = new AtomicIntegerArray(keys);
+      commits      = new AtomicInteger(0);
+      conflicts    = new AtomicInteger(0);
+      doubleSpends = new AtomicInteger(0);
+
+      // Mint one coin to each of the first keys.
+      for (int i = 0; i < utxos; i++)
+      {
+         Transaction transaction = new Transaction();
+         transaction.type = Transaction.MINT;
+         transaction.addOutput(pairs[i].getPublic(), 1.0f);
+         if (ledger.commit(transaction) != Parameters.SUCCESS)
+         {
+            throw new IllegalStateException("Cannot mint key " + i);
+         }
+         slots.set(i, i);
+      }
+
+      // Pay until the fresh keys run out.
+      final CountDownLatch done = new CountDownLatch(threads);
+      long begin = System.nanoTime();
+      for (int i = 0; i < threads; i++)
+      {
+         final long seed = i;
+         Thread     thread = new Thread(() ->
+                                        {
+                                           try
+                                           {
+                                              pay(new Random(seed));
+                                           }
+                                           catch (Exception e)
+                                           {
+                                              e.printStackTrace();
+                                           }
+                                           done.countDown();
+                                        });
+         thread.start();
+      }
+      done.await();
+      long elapsed = System.nanoTime() - begin;
+
+      // Check the ledger.
+      StringBuffer result = new StringBuffer();
+      result.append(commits.get() + " commits, " + conflicts.get() + " conflicts in " +
+                    (elapsed / 1000000) + " ms, " + doubleSpends.get() + " double spends");
+      int   live  = ledger.utxos.size();
+      float coins = 0.0f;
+      for (int i = 0; i < utxos; i++)
+      {
+         Ledger.UTXO utxo = ledger.utxos.get(Utils.hashPublicKey(pairs[slots.get(i)].getPublic()));
+         if (utxo == null)
+         {
+            result.append("\n\tslot " + i + ": key " + slots.get(i) + " has no UTXO");
+         }
+         else
+         {
+            coins += utxo.output.coins;
+         }
+      }
+      result.append("\n\t" + live + " UTXOs holding " + coins + " coins, minted " + utxos);
+      if ((doubleSpends.get() > 0) || (live != utxos) || (coins != (float)utxos))
+      {
+         result.append("\n\tFAILED");
+      }
+      else
+      {
+         result.append("\n\tpassed");
+      }
+      return(result.toString());
+   }
+
+
+   // Pay random live UTXOs to fresh keys: a thread keeps its fresh key
+   // until a payment to it commits.
+   private void pay(Random random) throws Exception
+   {
+      int to = fresh.getAndIncrement();
+
+      while (to < keys)
+      {
+         int slot = random.nextInt(utxos);
+         int from = slots.get(slot);
+
+         Transaction transaction = new Transaction();
+         transaction.type = Transaction.PAYMENT;
+         int hash = Utils.hashPublicKey(pairs[from].getPublic());
+         transaction.addInput(hash, Utils.signMessage(pairs[from].getPrivate(), Utils.intToBytes(hash)));
+         transaction.addOutput(pairs[to].getPublic(), 1.0f);
+         if ((ledger.validate(transaction) != Parameters.SUCCESS) ||
+             (ledger.lock(transaction) != Parameters.SUCCESS))
+         {
+            ledger.unlock(transaction);
+            conflicts.incrementAndGet();
+            continue;
+         }
+         if (ledger.commit(transaction) != Parameters.SUCCESS)
+         {
+            ledger.unlock(transaction);
+            conflicts.incrementAndGet();
+            continue;
+         }
+         commits.incrementAndGet();
+         if ((spends.incrementAndGet(from) > 1) || !slots.compareAndSet(slot, from, to))
+         {
+            doubleSpends.incrementAndGet();
+         }
+         to = fresh.getAndIncrement();
+      }
+   }
+
+
+   // Generate keys with distinct public key hashes.
+   private void generateKeys() throws Exception
+   {
+      KeyPairGenerator kpg    = KeyPairGenerator.getInstance("RSA");
+      HashSet<Integer> hashes = new HashSet<Integer>();
+
+      kpg.initialize(512, SecureRandom.getInstance("SHA1PRNG", "SUN"));
+      pairs = new KeyPair[keys];
+      for (int i = 0; i < keys; )
+      {
+         KeyPair pair = kpg.generateKeyPair();
+         if (hashes.add(Utils.hashPublicKey(pair.getPublic())))
+         {
+            pairs[i++] = pair;
+         }
+      }
+   }
+
+
+   // Main.
+   public static void main(String[] args) throws Exception
+   {
+      int threads = 16;
+      int utxos   = 64;
+      int keys    = 3000;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-threads"))
+         {
+            i++;
+            threads = Integer.parseInt(args[i]);
+         }
+         else if (args[i].equals("-utxos"))
+         {
+            i++;
+            utxos = Integer.parseInt(args[i]);
+         }
+         else if (args[i].equals("-keys"))
+         {
+            i++;
+            keys = Integer.parseInt(args[i]);
+         }
+         else
+         {
+            System.err.println(Options);
+            System.exit(1);
+         }
+      }
+      if ((utxos < 1) || (keys <= utxos))
+      {
+         System.err.println(Options);
+         System.exit(1);
+      }
+      DoubleSpendStress stress = new DoubleSpendStress(threads, utxos, keys);
+      System.out.println(stress.run());
+      if (stress.doubleSpends.get() > 0) { System.exit(1); }
+   }
+}
@@ -0,0 +1,182 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Fair scheduler.
+ * Runs client tasks on a worker pool, taking them from per-client queues by
+ * deficit round robin: each client with queued tasks is visited in turn and
+ * earns a quantum of credit per visit, which its tasks spend by cost. A
+ * client that submits many or costly transactions gets no more than its
+ * share of the workers while other clients wait.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import com.dialectek.coinspermia.shared.Histogram;
+
+public class FairScheduler implements Runnable
+{
+   // Queued task.
+   private static class Task
+   {
+      Runnable runnable;
+      int      cost;
+      long     enqueued;
+
+      Task(Runnable runnable, int cost)
+      {
+         this.runnable = runnable;
+         this.cost     = cost;
+         enqueued      = System.nanoTime();
+      }
+   }
+
+   // Client flow.
+   private static class Flow
+   {
+      Object           client;
+      ArrayDeque<Task> tasks;
+      int              deficit;
+
+      Flow(Object client)
+      {
+         this.client = client;
+         tasks       = new ArrayDeque<Task>();
+         deficit     = 0;
+      }
+   }
+
+   // Flows by client, and the active flows in round robin order.
+   private HashMap<Object, Flow> flows;
+   private ArrayDeque<Flow>      active;
+
+   // Queued tasks, and capacities in all and per client.
+   private int size;
+   public int  capacity;
+   public int  flowCapacity;
+
+   // Credit per visit.
+   public int quantum;
+
+   // Queue wait histogram.
+   private Histogram queueWait;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(FairScheduler.class .getName());
+
+   // Constructor.
+   public FairScheduler(String name, int threads, int capacity, int flowCapacity, int quantum,
+                        Histogram queueWait)
+   {
+      flows             = new HashMap<Object, Flow>();
+      active            = new ArrayDeque<Flow>();
+      size              = 0;
+      this.capacity     = capacity;
+      this.flowCapacity = flowCapacity;
+      this.quantum      = quantum;
+      this.queueWait    = queueWait;
+      for (int i = 0; i < threads; i++)
+      {
+         Thread thread = new Thread(this, name);
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+
+
+   // Queue client task: returns false if the queue or the client's queue
+   // is full.
+   public synchronized boolean offer(Object client, Runnable runnable, int cost)
+   {
+      if (size >= capacity) { return(false); }
+      Flow flow = flows.get(client);
+      if (flow == null)
+      {
+         flow = new Flow(client);
+         flows.put(client, flow);
+         active.addLast(flow);
+      }
+      else if (flow.tasks.size() >= flowCapacity)
+      {
+         return(false);
+      }
+      flow.tasks.addLast(new Task(runnable, cost));
+      size++;
+      notify();
+      return(true);
+   }
+
+
+   // Take next task by deficit round robin.
+   private synchronized Task take() throws InterruptedException
+   {
+      while (size == 0)
+      {
+         wait();
+      }
+      while (true)
+      {
+         Flow flow = active.peekFirst();
+         Task task = flow.tasks.peekFirst();
+         if (flow.deficit < task.cost)
+         {
+            flow.deficit += quantum;
+            active.addLast(active.pollFirst());
+            continue;
+         }
+         flow.deficit -= task.cost;
+         flow.tasks.pollFirst();
+         size--;
+         if (flow.tasks.isEmpty())
+         {
+            active.pollFirst();
+            flows.remove(flow.client);
+         }
+         return(task);
+      }
+   }
+
+
+   // Queued tasks.
+   public synchronized int size()
+   {
+      return(size);
+   }
+
+
+   // Queued clients.
+   public synchronized int clients()
+   {
+      return(flows.size());
+   }
+
+
+   // Worker.
+   public void run()
+   {
+      while (true)
+      {
+         Task task;
+         try
+         {
+            task = take();
+         }
+         catch (InterruptedException e)
+         {
+            return;
+         }
+         queueWait.record((System.nanoTime() - task.enqueued) / 1000);
+         try
+         {
+            task.runnable.run();
+         }
+         catch (Exception e)
+         {
+            logger.severe("Cannot run client task: " + e.getMessage());
+         }
+      }
+   }
+}
@@ -0,0 +1,203 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Open-addressing UTXO map with primitive int keys.
+ * Linear probing with backward-shift deletion, so there are no tombstones
+ * and lookups never box the key.
+ */
+
+package com.dialectek.coinspermia.node;
+
+public class IntUTXOMap implements UTXOMap
+{
+   // Default capacity and maximum load factor.
+   public static final int   DEFAULT_CAPACITY = 1024;
+   public static final float LOAD_FACTOR      = 0.6f;
+
+   // Slots: a null value marks an empty slot.
+   private int[]         keys;
+   private Ledger.UTXO[] values;
+   private int           mask;
+   private int           size;
+   private int           resizeThreshold;
+
+   // Constructors.
+   public IntUTXOMap()
+   {
+      this(DEFAULT_CAPACITY);
+   }
+
+
+   public IntUTXOMap(int expectedSize)
+   {
+      int capacity = 16;
+
+      while (capacity * LOAD_FACTOR < expectedSize)
+      {
+         capacity <<= 1;
+      }
+      allocate(capacity);
+   }
+
+
+   // Get UTXO.
+   public Ledger.UTXO get(int hash)
+   {
+      int i = indexOf(hash);
+
+      if (i < 0) { return(null); }
+      return(values[i]);
+   }
+
+
+   // Put UTXO, returning previous.
+   public Ledger.UTXO put(int hash, Ledger.UTXO utxo)
+   {
+      if (utxo == null)
+      {
+         return(remove(hash));
+      }
+      int i = slot(hash);
+      while (values[i] != null)
+      {
+         if (keys[i] == hash)
+         {
+            Ledger.UTXO previous = values[i];
+            values[i] = utxo;
+            return(previous);
+         }
+         i = (i + 1) & mask;
+      }
+      keys[i]   = hash;
+      values[i] = utxo;
+      if (++size > resizeThreshold)
+      {
+         resize(keys.length << 1);
+      }
+      return(null);
+   }
+
+
+   // Remove UTXO, returning previous.
+   public Ledger.UTXO remove(int hash)
+   {
+      int i = indexOf(hash);
+
+      if (i < 0) { return(null); }
+      Ledger.UTXO previous = values[i];
+
+      // Shift following entries of the probe run back into the gap.
+      int j = i;
+      while (true)
+      {
+         j = (j + 1) & mask;
+         if (values[j] == null) { break; }
+         int k = slot(keys[j]);
+         if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j)))
+         {
+            continue;
+         }
+         keys[i]   = keys[j];
+         values[i] = values[j];
+         i         = j;
+      }
+      values[i] = null;
+      size--;
+      return(previous);
+   }
+
+
+   // Contains UTXO?
+   public boolean containsKey(int hash)
+   {
+      return(indexOf(hash) >= 0);
+   }
+
+
+   // Number of UTXOs.
+   public int size()
+   {
+      return(size);
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      for (int i = 0; i < values.length; i++)
+      {
+         values[i] = null;
+      }
+      size = 0;
+   }
+
+
+   // Visit all UTXOs.
+   public void forEach(Visitor visitor)
+   {
+      for (int i = 0; i < values.length; i++)
+      {
+         if (values[i] != null)
+         {
+            visitor.visit(keys[i], values[i]);
+         }
+      }
+   }
+
+
+   // Find slot of key.
+   private int indexOf(int hash)
+   {
+      int i = slot(hash);
+
+      while (values[i] != null)
+      {
+         if (keys[i] == hash)
+         {
+            return(i);
+         }
+         i = (i + 1) & mask;
+      }
+      return(-1);
+   }
+
+
+   // Home slot of key: spread the hash bits, then mask.
+   private int slot(int hash)
+   {
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+      hash *= 0xc2b2ae35;
+      hash ^= hash >>> 16;
+      return(hash & mask);
+   }
+
+
+   // Allocate slots.
+   private void allocate(int capacity)
+   {
+      keys            = new int[capacity];
+      values          = new Ledger.UTXO[capacity];
+      mask            = capacity - 1;
+      resizeThreshold = (int)(capacity * LOAD_FACTOR);
+      size            = 0;
+   }
+
+
+   // Resize and rehash.
+   private void resize(int capacity)
+   {
+      int[]         oldKeys   = keys;
+      Ledger.UTXO[] oldValues = values;
+
+      allocate(capacity);
+      for (int i = 0; i < oldValues.length; i++)
+      {
+         if (oldValues[i] != null)
+         {
+            put(oldKeys[i], oldValues[i]);
+         }
+      }
+   }
+}
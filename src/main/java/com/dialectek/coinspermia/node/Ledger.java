@@ -6,25 +6,30 @@
 
 package com.dialectek.coinspermia.node;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Logger;
 
-import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-
 import com.dialectek.coinspermia.shared.Parameters;
 import com.dialectek.coinspermia.shared.Transaction;
 import com.dialectek.coinspermia.shared.Utils;
@@ -48,7 +53,22 @@ public class Ledger
          txtime      = null;
       }
    };
-   public HashMap<Integer, UTXO> utxos;
+   public StripedUTXOMap utxos;
+
+   // Spent UTXO tombstones for anti-entropy, keyed like the UTXOs, with
+   // the spend time in txtime. Locked after the UTXO stripes.
+   public StripedUTXOMap spent;
+
+   // Verified input signatures.
+   public SignatureCache signatures;
+
+   // Write-ahead log of changes since the snapshot, and the last
+   // log sequence number included in the snapshot.
+   public WriteAheadLog wal;
+   public long          walSequence;
+
+   // Serializes saves and loads.
+   private Object snapshotLock;
 
    // Logging.
    private static Logger logger = Logger.getLogger(Ledger.class .getName());
@@ -57,140 +77,475 @@ public class Ledger
    public Ledger()
    {
       transactions = new ArrayList<Transaction>();
-      utxos        = new HashMap<Integer, UTXO>();
+      utxos        = new StripedUTXOMap(Parameters.LEDGER_LOCK_STRIPES, true);
+      spent        = new StripedUTXOMap(Parameters.LEDGER_LOCK_STRIPES);
+      signatures   = new SignatureCache(Parameters.SIGNATURE_CACHE_SIZE);
+      wal          = null;
+      walSequence  = 0;
+      snapshotLock = new Object();
+   }
+
+
+   // Open ledger: load snapshot, replay write-ahead log and log new commits.
+   public void open(String ledgerFile, String walFile, int fsyncWindow)
+   {
+      load(ledgerFile);
+      WriteAheadLog log = new WriteAheadLog(walFile, fsyncWindow);
+      try
+      {
+         long sequence = log.replay(this, walSequence);
+         log.open(sequence);
+         wal = log;
+      }
+      catch (IOException e)
+      {
+         logger.severe("Cannot open write-ahead log " + walFile + ": " + e.getMessage());
+      }
    }
 
 
    // Validate transaction.
    // Returns: SUCCESS, INVALID, DUPLICATE, FAIL (transaction cannot be applied).
-   public synchronized int validate(Transaction transaction)
+   public int validate(Transaction transaction)
    {
-      float coinsIn  = 0.0f;
-      float coinsOut = 0.0f;
+      int[] stripes = lockStripes(transaction);
 
-      // Sanity checks.
-      for (Transaction.Input input : transaction.inputs)
+      try
       {
-         if (input == null)
+         float coinsIn  = 0.0f;
+         float coinsOut = 0.0f;
+
+         // Sanity checks.
+         for (Transaction.Input input : transaction.inputs)
+         {
+            if (input == null)
+            {
+               return(Parameters.INVALID);
+            }
+         }
+         for (Transaction.Output output : transaction.outputs)
+         {
+            if (output == null)
+            {
+               return(Parameters.INVALID);
+            }
+         }
+
+         // Check for duplicate application.
+         for (Transaction.Output output : transaction.outputs)
          {
-            return(Parameters.INVALID);
+            int  hash = output.publicKeyHash;
+            UTXO utxo = utxos.get(hash);
+            if ((utxo != null) && utxo.output.id.toString().equals(output.id.toString()))
+            {
+               return(Parameters.DUPLICATE);
+            }
          }
+
+         // Check input-output validity.
+         int result = Parameters.SUCCESS;
+         if (transaction.type == Transaction.PAYMENT)
+         {
+            for (Transaction.Input input : transaction.inputs)
+            {
+               UTXO utxo = utxos.get(input.publicKeyHash);
+               if (utxo == null)
+               {
+                  // Possible double spend.
+                  result = Parameters.FAIL;
+                  continue;
+               }
+               if (!signatures.verify(utxo.output.publicKey, input.publicKeyHash, input.signature))
+               {
+                  return(Parameters.INVALID);
+               }
+               for (Transaction.Output nextOutput : transaction.outputs)
+               {
+                  if (utxo.output.id.equals(nextOutput.id))
+                  {
+                     return(Parameters.INVALID);
+                  }
+               }
+               coinsIn += utxo.output.coins;
+            }
+            for (Transaction.Output output : transaction.outputs)
+            {
+               coinsOut += output.coins;
+            }
+            if ((result == Parameters.SUCCESS) && (coinsIn != coinsOut))
+            {
+               return(Parameters.INVALID);
+            }
+         }
+         return(result);
       }
-      for (Transaction.Output output : transaction.outputs)
+      finally
+      {
+         utxos.unlockStripes(stripes);
+      }
+   }
+
+
+   // Lock transaction utxos.
+   public int lock(Transaction transaction)
+   {
+      int[] stripes = lockStripes(transaction);
+
+      try
       {
-         if (output == null)
+         if (transaction.type == Transaction.PAYMENT)
          {
-            return(Parameters.INVALID);
+            Date txtime = new Date();
+            for (Transaction.Input input : transaction.inputs)
+            {
+               UTXO utxo = utxos.get(input.publicKeyHash);
+               if (utxo == null)
+               {
+                  return(Parameters.INVALID);
+               }
+               if ((utxo.txlock == null) || (utxo.txlock == transaction.id) ||
+                   ((txtime.getTime() - utxo.txtime.getTime()) >= Parameters.TRANSACTION_TIME_OUT))
+               {
+                  utxo.txlock = transaction.id;
+                  utxo.txtime = txtime;
+               }
+               else
+               {
+                  return(Parameters.LOCK_FAIL);
+               }
+            }
          }
+         return(Parameters.SUCCESS);
       }
+      finally
+      {
+         utxos.unlockStripes(stripes);
+      }
+   }
 
-      // Check for duplicate application.
-      for (Transaction.Output output : transaction.outputs)
+
+   // Unlock transaction utxos.
+   public void unlock(Transaction transaction)
+   {
+      int[] stripes = lockStripes(transaction);
+
+      try
       {
-         int  hash = Utils.hashPublicKey(output.publicKey);
-         UTXO utxo = utxos.get(hash);
-         if ((utxo != null) && utxo.output.id.toString().equals(output.id.toString()))
+         if (transaction.type == Transaction.PAYMENT)
          {
-            return(Parameters.DUPLICATE);
+            for (Transaction.Input input : transaction.inputs)
+            {
+               UTXO utxo = utxos.get(input.publicKeyHash);
+               if (utxo != null)
+               {
+                  if (utxo.txlock == transaction.id)
+                  {
+                     utxo.txlock = null;
+                     utxo.txtime = null;
+                  }
+               }
+            }
          }
       }
+      finally
+      {
+         utxos.unlockStripes(stripes);
+      }
+   }
 
-      // Check input-output validity.
-      int result = Parameters.SUCCESS;
-      if (transaction.type == Transaction.PAYMENT)
+
+   // Commit transaction.
+   public int commit(Transaction transaction)
+   {
+      int[] stripes  = lockStripes(transaction);
+      int   result   = Parameters.FAIL;
+      long  sequence = 0;
+
+      try
       {
-         for (Transaction.Input input : transaction.inputs)
+         result = apply(transaction);
+
+         // Log under the stripe locks so log order matches apply order per UTXO.
+         if ((result == Parameters.SUCCESS) && (wal != null))
          {
-            UTXO utxo = utxos.get(input.publicKeyHash);
-            if (utxo == null)
+            sequence = wal.append(transaction);
+         }
+      }
+      catch (IOException e)
+      {
+         logger.severe("Cannot log transaction, id=" + transaction.id + ": " + e.getMessage());
+      }
+      finally
+      {
+         utxos.unlockStripes(stripes);
+      }
+
+      // Wait for group fsync outside the locks.
+      if (sequence > 0)
+      {
+         try
+         {
+            wal.sync(sequence);
+         }
+         catch (IOException e)
+         {
+            logger.severe("Cannot sync transaction, id=" + transaction.id + ": " + e.getMessage());
+         }
+      }
+      return(result);
+   }
+
+
+   // Commit batch of transactions, in order, under one critical section
+   // and with one log sync. Returns the result of each transaction.
+   public int[] commitBatch(List<Transaction> batch)
+   {
+      int[] results  = new int[batch.size()];
+      int[] stripes  = lockStripes(batch);
+      long  sequence = 0;
+
+      Arrays.fill(results, Parameters.FAIL);
+      try
+      {
+         for (int i = 0, j = batch.size(); i < j; i++)
+         {
+            Transaction transaction = batch.get(i);
+            results[i] = apply(transaction);
+            if ((results[i] == Parameters.SUCCESS) && (wal != null))
             {
-               // Possible double spend.
-               result = Parameters.FAIL;
-               continue;
+               sequence = wal.append(transaction);
             }
-            if (!Utils.verifySignature(utxo.output.publicKey, Utils.intToBytes(input.publicKeyHash), input.signature))
+         }
+      }
+      catch (IOException e)
+      {
+         logger.severe("Cannot log transaction batch: " + e.getMessage());
+      }
+      finally
+      {
+         utxos.unlockStripes(stripes);
+      }
+      if (sequence > 0)
+      {
+         try
+         {
+            wal.sync(sequence);
+         }
+         catch (IOException e)
+         {
+            logger.severe("Cannot sync transaction batch: " + e.getMessage());
+         }
+      }
+      return(results);
+   }
+
+
+   // UTXOs and spent tombstones in Merkle tree buckets, as the outputs of
+   // two transactions.
+   public Transaction[] bucketContents(int[] buckets)
+   {
+      final Transaction live      = new Transaction();
+      final Transaction spentUTXO = new Transaction();
+
+      for (int bucket : buckets)
+      {
+         utxos.forEach(bucket, (hash, utxo) -> live.outputs.add(utxo.output.copy()));
+         spent.forEach(bucket, (hash, utxo) -> spentUTXO.outputs.add(utxo.output.copy()));
+      }
+      return(new Transaction[] { live, spentUTXO });
+   }
+
+
+   // Reconcile with a peer's UTXOs and spent tombstones.
+   // Versions count the commits applied at a key, funding or spending it,
+   // so the higher version is newer, and a later funding beats an older
+   // tombstone. A peer UTXO is taken if newer than this ledger's UTXO or
+   // tombstone at its key. Two ledgers can reach the same version at a key
+   // by different commits, which the output ids tell apart; then both
+   // take the same one by coins and id. A peer tombstone spends an older
+   // or same version UTXO, and replaces an older tombstone. Keys only this
+   // ledger has are kept: the peer reconciles with them in turn.
+   // Returns the changes made, as outputs set and outputs spent.
+   public Transaction[] reconcile(ArrayList<Transaction.Output> live, ArrayList<Transaction.Output> spentOutputs)
+   {
+      Transaction set      = new Transaction();
+      Transaction spends   = new Transaction();
+      int[]       hashes   = new int[live.size() + spentOutputs.size()];
+      int         n        = 0;
+      long        sequence = 0;
+
+      for (Transaction.Output output : live)
+      {
+         hashes[n++] = output.publicKeyHash;
+      }
+      for (Transaction.Output output : spentOutputs)
+      {
+         hashes[n++] = output.publicKeyHash;
+      }
+      int[] stripes = utxos.lockStripes(hashes);
+      try
+      {
+         for (Transaction.Output output : live)
+         {
+            if (output.publicKey == null) { continue; }
+            UTXO utxo = utxos.get(output.publicKeyHash);
+            if (utxo != null)
             {
-               return(Parameters.INVALID);
+               if (newer(output, utxo.output))
+               {
+                  set.outputs.add(output);
+               }
             }
-            for (Transaction.Output nextOutput : transaction.outputs)
+            else
             {
-               if (utxo.output.id.equals(nextOutput.id))
+               UTXO tombstone = spent.get(output.publicKeyHash);
+               if ((tombstone == null) || (output.version > tombstone.output.version))
                {
-                  return(Parameters.INVALID);
+                  set.outputs.add(output);
                }
             }
-            coinsIn += utxo.output.coins;
          }
-         for (Transaction.Output output : transaction.outputs)
+         for (Transaction.Output output : spentOutputs)
          {
-            coinsOut += output.coins;
+            UTXO utxo = utxos.get(output.publicKeyHash);
+            if (utxo != null)
+            {
+               if (output.version >= utxo.output.version)
+               {
+                  spends.outputs.add(output);
+               }
+            }
+            else
+            {
+               UTXO tombstone = spent.get(output.publicKeyHash);
+               if ((tombstone == null) || newer(output, tombstone.output))
+               {
+                  spends.outputs.add(output);
+               }
+            }
          }
-         if ((result == Parameters.SUCCESS) && (coinsIn != coinsOut))
+         if (set.outputs.isEmpty() && spends.outputs.isEmpty()) { return(new Transaction[] { set, spends }); }
+         restore(set, spends);
+         if (wal != null)
          {
-            return(Parameters.INVALID);
+            sequence = wal.appendReconcile(set, spends);
          }
       }
-      return(result);
+      catch (IOException e)
+      {
+         logger.severe("Cannot log ledger reconciliation: " + e.getMessage());
+      }
+      finally
+      {
+         utxos.unlockStripes(stripes);
+      }
+      if (sequence > 0)
+      {
+         try
+         {
+            wal.sync(sequence);
+         }
+         catch (IOException e)
+         {
+            logger.severe("Cannot sync ledger reconciliation: " + e.getMessage());
+         }
+      }
+      return(new Transaction[] { set, spends });
    }
 
 
-   // Lock transaction utxos.
-   public synchronized int lock(Transaction transaction)
+   // Is output newer than another at its key? The higher version is; of
+   // the same version, reached by different commits, the one with more
+   // coins, then the one with the greater id, so that peers agree.
+   private static boolean newer(Transaction.Output output, Transaction.Output other)
    {
-      if (transaction.type == Transaction.PAYMENT)
+      if (output.version != other.version) { return(output.version > other.version); }
+      if (output.coins != other.coins) { return(output.coins > other.coins); }
+      return(output.id.compareTo(other.id) > 0);
+   }
+
+
+   // Restore reconciliation changes: set UTXOs to the outputs set, and
+   // spend UTXOs at the keys of the outputs spent, keeping those as the
+   // tombstones.
+   public void restore(Transaction set, Transaction spends)
+   {
+      int[] stripes = lockStripes(Arrays.asList(set, spends));
+
+      try
       {
-         Date txtime = new Date();
-         for (Transaction.Input input : transaction.inputs)
+         Date now = new Date();
+         for (Transaction.Output output : set.outputs)
          {
-            UTXO utxo = utxos.get(input.publicKeyHash);
+            int  hash = output.publicKeyHash;
+            UTXO utxo = utxos.get(hash);
             if (utxo == null)
             {
-               return(Parameters.INVALID);
-            }
-            if ((utxo.txlock == null) || (utxo.txlock == transaction.id) ||
-                ((txtime.getTime() - utxo.txtime.getTime()) >= Parameters.TRANSACTION_TIME_OUT))
-            {
-               utxo.txlock = transaction.id;
-               utxo.txtime = txtime;
+               utxos.put(hash, new UTXO(output.copy()));
+               spent.remove(hash);
             }
             else
             {
-               return(Parameters.LOCK_FAIL);
+               utxos.merkle.toggle(hash, utxo.output);
+               utxo.output.coins   = output.coins;
+               utxo.output.id      = output.id;
+               utxo.output.version = output.version;
+               utxos.merkle.toggle(hash, utxo.output);
             }
          }
+         for (Transaction.Output output : spends.outputs)
+         {
+            int  hash      = output.publicKeyHash;
+            UTXO tombstone = new UTXO(output.copy());
+            utxos.remove(hash);
+            tombstone.txtime = now;
+            spent.put(hash, tombstone);
+         }
+      }
+      finally
+      {
+         utxos.unlockStripes(stripes);
       }
-      return(Parameters.SUCCESS);
    }
 
 
-   // Unlock transaction utxos.
-   public synchronized void unlock(Transaction transaction)
+   // Discard tombstones spent before time. Each is removed under its
+   // key's stripe lock, and only if still expired: a commit may have
+   // replaced it with a newer tombstone since it was found.
+   public void pruneSpent(long time)
    {
-      if (transaction.type == Transaction.PAYMENT)
+      final ArrayList<Integer> expired = new ArrayList<Integer>();
+
+      spent.forEach((hash, utxo) ->
       {
-         for (Transaction.Input input : transaction.inputs)
+         if (utxo.txtime.getTime() < time) { expired.add(hash); }
+      });
+      for (int hash : expired)
+      {
+         int[] stripes = utxos.lockStripes(new int[] { hash });
+         try
          {
-            UTXO utxo = utxos.get(input.publicKeyHash);
-            if (utxo != null)
+            UTXO tombstone = spent.get(hash);
+            if ((tombstone != null) && (tombstone.txtime.getTime() < time))
             {
-               if (utxo.txlock == transaction.id)
-               {
-                  utxo.txlock = null;
-                  utxo.txtime = null;
-               }
+               spent.remove(hash);
             }
          }
+         finally
+         {
+            utxos.unlockStripes(stripes);
+         }
       }
    }
 
 
-   // Commit transaction.
-   public synchronized int commit(Transaction transaction)
+   // Apply transaction: caller holds its stripe locks.
+   private int apply(Transaction transaction)
    {
       // Check for duplicate application.
       for (Transaction.Output output : transaction.outputs)
       {
-         int  hash = Utils.hashPublicKey(output.publicKey);
+         int  hash = output.publicKeyHash;
          UTXO utxo = utxos.get(hash);
          if ((utxo != null) && utxo.output.id.toString().equals(output.id.toString()))
          {
@@ -198,35 +553,158 @@ public class Ledger
          }
       }
 
-      // Remove precedents.
+      // Remove precedents: a spend is a new version at the key.
       if (transaction.type == Transaction.PAYMENT)
       {
+         Date now = new Date();
          for (Transaction.Input input : transaction.inputs)
          {
-            utxos.remove(input.publicKeyHash);
+            UTXO utxo = utxos.remove(input.publicKeyHash);
+            if (utxo != null)
+            {
+               utxo.output.version++;
+               utxo.txtime = now;
+               spent.put(input.publicKeyHash, utxo);
+            }
          }
       }
 
-      // Apply changes.
+      // Apply changes: the UTXO holds a copy of the output, as the output
+      // of a later commit to the key is added to it while the transaction
+      // may still be queued for peers. Each funding is a new version at the
+      // key, following that of any tombstone there.
       for (Transaction.Output output : transaction.outputs)
       {
-         int  hash = Utils.hashPublicKey(output.publicKey);
+         int  hash = output.publicKeyHash;
          UTXO utxo = utxos.get(hash);
          if (utxo == null)
          {
-            utxos.put(hash, new UTXO(output));
+            UTXO tombstone = spent.remove(hash);
+            utxo                = new UTXO(output.copy());
+            utxo.output.version = (tombstone != null ? tombstone.output.version : 0) + 1;
+            utxos.put(hash, utxo);
          }
          else
          {
+            utxos.merkle.toggle(hash, utxo.output);
             utxo.output.coins += output.coins;
             utxo.output.id     = output.id;
+            utxo.output.version++;
+            utxos.merkle.toggle(hash, utxo.output);
          }
       }
-      transactions.add(transaction);
+      synchronized (transactions)
+      {
+         transactions.add(transaction);
+      }
       return(Parameters.SUCCESS);
    }
 
 
+   // Balance of public key.
+   // UTXOs are keyed by public key hash, so this is a single lookup.
+   public float balanceOf(PublicKey publicKey)
+   {
+      float[] balances = balancesOf(Arrays.asList(publicKey));
+
+      return(balances[0]);
+   }
+
+
+   // Balances of public keys, read under one lock of their stripes.
+   public float[] balancesOf(List<PublicKey> publicKeys)
+   {
+      int      n           = publicKeys.size();
+      float[]  balances    = new float[n];
+      byte[][] encodedKeys = new byte[n][];
+      int[]    hashes      = new int[n];
+
+      for (int i = 0; i < n; i++)
+      {
+         PublicKey publicKey = publicKeys.get(i);
+         if (publicKey != null)
+         {
+            encodedKeys[i] = publicKey.getEncoded();
+            hashes[i]      = Utils.hashEncodedKey(encodedKeys[i]);
+         }
+      }
+      int[] stripes = utxos.lockStripes(hashes);
+      try
+      {
+         for (int i = 0; i < n; i++)
+         {
+            if (encodedKeys[i] == null) { continue; }
+            UTXO utxo = utxos.get(hashes[i]);
+
+            // Guard against hash collisions.
+            if ((utxo != null) && Arrays.equals(utxo.output.encodedKey, encodedKeys[i]))
+            {
+               balances[i] = utxo.output.coins;
+            }
+         }
+      }
+      finally
+      {
+         utxos.unlockStripes(stripes);
+      }
+      return(balances);
+   }
+
+
+   // Lock stripes of transaction input and output utxos.
+   // Transactions on disjoint utxos validate, lock and commit in parallel.
+   private int[] lockStripes(Transaction transaction)
+   {
+      int[] hashes = new int[transaction.inputs.size() + transaction.outputs.size()];
+      int   n      = hashes(transaction, hashes, 0);
+
+      return(utxos.lockStripes(Arrays.copyOf(hashes, n)));
+   }
+
+
+   // Lock stripes of batch of transactions.
+   private int[] lockStripes(List<Transaction> batch)
+   {
+      int size = 0;
+
+      for (Transaction transaction : batch)
+      {
+         size += transaction.inputs.size() + transaction.outputs.size();
+      }
+      int[] hashes = new int[size];
+      int   n      = 0;
+      for (Transaction transaction : batch)
+      {
+         n = hashes(transaction, hashes, n);
+      }
+      return(utxos.lockStripes(Arrays.copyOf(hashes, n)));
+   }
+
+
+   // Add hashes of transaction UTXOs at offset, returning the new offset.
+   private int hashes(Transaction transaction, int[] hashes, int n)
+   {
+      if (transaction.type == Transaction.PAYMENT)
+      {
+         for (Transaction.Input input : transaction.inputs)
+         {
+            if (input != null)
+            {
+               hashes[n++] = input.publicKeyHash;
+            }
+         }
+      }
+      for (Transaction.Output output : transaction.outputs)
+      {
+         if (output != null)
+         {
+            hashes[n++] = output.publicKeyHash;
+         }
+      }
+      return(n);
+   }
+
+
    public UTXO newUTXO(Transaction.Output output)
    {
       return(new UTXO(output));
@@ -236,113 +714,224 @@ public class Ledger
    // Load ledger.
    public void load(String ledgerFile)
    {
-      if (new File(ledgerFile).exists())
+      synchronized (snapshotLock)
       {
-         try
+         if (new File(ledgerFile).exists())
          {
-            Ledger ledger = fromJson(new String(Files.readAllBytes(Paths.get(ledgerFile))));
+            try
+            {
+               Ledger ledger = new Ledger();
+               try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ledgerFile), StandardCharsets.UTF_8)))
+               {
+                  LedgerSnapshot.read(reader, ledger);
+               }
 
-            utxos.clear();
-            for (Map.Entry<Integer, UTXO> entry : ledger.utxos.entrySet())
+               utxos.lockAll();
+               try
+               {
+                  utxos.clear();
+                  spent.clear();
+                  ledger.utxos.forEach((hash, utxo) -> utxos.put(hash, utxo));
+                  walSequence = ledger.walSequence;
+
+                  // The snapshot now supersedes the log: records logged
+                  // from now on follow it.
+                  if (wal != null)
+                  {
+                     walSequence = wal.sequence();
+                     wal.truncate(walSequence);
+                  }
+               }
+               finally
+               {
+                  utxos.unlockAll();
+               }
+            }
+            catch (Exception e)
             {
-               Integer hash = entry.getKey();
-               UTXO    utxo = entry.getValue();
-               utxos.put(hash, utxo);
+               logger.severe("Cannot load ledger from " + ledgerFile);
             }
          }
-         catch (Exception e)
+         else
          {
-            logger.severe("Cannot load ledger from " + ledgerFile);
+            logger.info("Ledger " + ledgerFile + " does not exist");
          }
       }
-      else
+   }
+
+
+   // Capture a consistent snapshot of the UTXOs.
+   public LedgerSnapshot snapshot()
+   {
+      utxos.lockAll();
+      try
+      {
+         return(new LedgerSnapshot(utxos, walSequence));
+      }
+      finally
       {
-         logger.info("Ledger " + ledgerFile + " does not exist");
+         utxos.unlockAll();
       }
    }
 
 
+   // Install UTXOs of staging ledger, merged with these, and save the
+   // ledger so the installed UTXOs are durable. Commits applied here while
+   // the staging ledger was filled are kept: a staging UTXO is taken only
+   // if newer than this ledger's UTXO or tombstone at its key, as in
+   // reconciliation.
+   public void install(Ledger staging, String ledgerFile)
+   {
+      utxos.lockAll();
+      try
+      {
+         staging.utxos.forEach((hash, utxo) ->
+         {
+            UTXO local = utxos.get(hash);
+            if (local != null)
+            {
+               if (newer(utxo.output, local.output))
+               {
+                  utxos.put(hash, utxo);
+               }
+            }
+            else
+            {
+               UTXO tombstone = spent.get(hash);
+               if ((tombstone == null) || (utxo.output.version > tombstone.output.version))
+               {
+                  utxos.put(hash, utxo);
+                  spent.remove(hash);
+               }
+            }
+         });
+      }
+      finally
+      {
+         utxos.unlockAll();
+      }
+      save(ledgerFile);
+   }
+
+
    // Save ledger.
+   // The snapshot is written to a temporary file, synced and renamed into
+   // place; only then are the log records it includes discarded. Saves and
+   // loads run one at a time, so that a snapshot file and the log records
+   // discarded for it always match.
    public void save(String ledgerFile)
    {
-      try (PrintWriter out = new PrintWriter(ledgerFile))
+      synchronized (snapshotLock)
+      {
+         LedgerSnapshot snapshot;
+         long           sequence;
+
+         utxos.lockAll();
+         try
+         {
+            if (wal != null)
+            {
+               walSequence = wal.sequence();
+            }
+            sequence = walSequence;
+            snapshot = new LedgerSnapshot(utxos, sequence);
+         }
+         finally
+         {
+            utxos.unlockAll();
+         }
+         String tmpFile = ledgerFile + ".tmp";
+         try (FileOutputStream out = new FileOutputStream(tmpFile))
          {
-            out.println(toJson());
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            snapshot.write(writer);
+            writer.write("\n");
+            writer.flush();
+            out.getFD().sync();
          }
          catch (Exception e)
          {
             logger.severe("Cannot save ledger to " + ledgerFile);
+            return;
          }
-
+         try
+         {
+            Files.move(Paths.get(tmpFile), Paths.get(ledgerFile), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            if (wal != null)
+            {
+               wal.truncate(sequence);
+            }
+         }
+         catch (Exception e)
+         {
+            logger.severe("Cannot save ledger to " + ledgerFile + ": " + e.getMessage());
+         }
+      }
    }
 
 
    // Clear ledger.
    public void clear()
    {
-      utxos.clear();
+      long sequence = 0;
+
+      utxos.lockAll();
+      try
+      {
+         utxos.clear();
+         spent.clear();
+         if (wal != null)
+         {
+            sequence = wal.appendClear();
+         }
+      }
+      catch (IOException e)
+      {
+         logger.severe("Cannot log ledger clear: " + e.getMessage());
+      }
+      finally
+      {
+         utxos.unlockAll();
+      }
+      if (sequence > 0)
+      {
+         try
+         {
+            wal.sync(sequence);
+         }
+         catch (IOException e)
+         {
+            logger.severe("Cannot sync ledger clear: " + e.getMessage());
+         }
+      }
    }
 
 
    // Ledger to Json.
    public String toJson()
    {
-      JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+      StringWriter writer = new StringWriter();
 
-      for (Map.Entry<Integer, UTXO> entry : utxos.entrySet())
+      utxos.lockAll();
+      try
       {
-         Integer           hash         = entry.getKey();
-         UTXO              utxo         = entry.getValue();
-         JsonObjectBuilder entryBuilder = Json.createObjectBuilder();
-         entryBuilder = entryBuilder.add("hash", hash);
-         String publicKeyString = "";
-         try
-         {
-            publicKeyString = Utils.stringFromPublicKey(utxo.output.publicKey);
-         }
-         catch (Exception e)
-         {
-            logger.severe("Cannot convert publicKey to string");
-         }
-         JsonObjectBuilder outputBuilder = Json.createObjectBuilder()
-                                              .add("publicKey", publicKeyString)
-                                              .add("coins", utxo.output.coins + "");
-         entryBuilder = entryBuilder.add("output", outputBuilder.build());
-         arrayBuilder.add(entryBuilder.build());
+         new LedgerSnapshot(utxos, walSequence).write(writer);
       }
-      JsonArray utxoArray = arrayBuilder.build();
-      return(Json.createObjectBuilder()
-                .add("utxos", utxoArray)
-                .build().toString());
+      finally
+      {
+         utxos.unlockAll();
+      }
+      return(writer.toString());
    }
 
 
    // Ledger from Json.
    public static Ledger fromJson(final String ledgerJson)
    {
-      Ledger      ledger     = new Ledger();
-      JsonObject  jsonObject = Json.createReader(new StringReader(ledgerJson)).readObject();
-      JsonArray   utxoArray  = jsonObject.getJsonArray("utxos");
-      Transaction tx         = new Transaction();
+      Ledger ledger = new Ledger();
 
-      for (int i = 0; i < utxoArray.size(); i++)
-      {
-         JsonObject entryObject  = utxoArray.getJsonObject(i);
-         int        hash         = entryObject.getInt("hash");
-         JsonObject outputObject = entryObject.getJsonObject("output");
-         PublicKey  publicKey    = null;
-         try
-         {
-            publicKey = Utils.stringToPublicKey(outputObject.getString("publicKey"));
-         }
-         catch (Exception e)
-         {
-            logger.severe("Cannot convert string to publicKey");
-         }
-         float              coins  = Float.parseFloat(outputObject.getString("coins"));
-         Transaction.Output output = tx.newOutput(publicKey, coins);
-         ledger.utxos.put(hash, ledger.newUTXO(output));
-      }
+      LedgerSnapshot.read(new StringReader(ledgerJson), ledger);
       return(ledger);
    }
 }
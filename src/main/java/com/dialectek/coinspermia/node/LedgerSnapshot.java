@@ -0,0 +1,300 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Ledger snapshot.
+ * Streams the ledger Json format, so neither loading nor saving builds
+ * the whole document in memory. Loading decodes public keys in bounded
+ * chunks on the fork-join pool; saving captures a compact copy of the
+ * UTXOs under the ledger locks and writes it after they are released.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Logger;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+
+import com.dialectek.coinspermia.shared.Transaction;
+import com.dialectek.coinspermia.shared.Utils;
+
+public class LedgerSnapshot
+{
+   // UTXOs decoded per task.
+   public static final int CHUNK_SIZE = 4096;
+
+   // Captured UTXOs.
+   public long     walSequence;
+   public int      size;
+   public int[]    hashes;
+   public byte[][] encodedKeys;
+   public float[]  coins;
+   public int[]    versions;
+   public UUID[]   ids;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(LedgerSnapshot.class .getName());
+
+   // Capture UTXOs: caller must hold all ledger stripe locks for a
+   // consistent snapshot.
+   public LedgerSnapshot(StripedUTXOMap utxos, long walSequence)
+   {
+      int n = utxos.size();
+
+      this.walSequence = walSequence;
+      hashes           = new int[n];
+      encodedKeys      = new byte[n][];
+      coins            = new float[n];
+      versions         = new int[n];
+      ids              = new UUID[n];
+      size             = 0;
+      utxos.forEach((hash, utxo) ->
+      {
+         hashes[size]      = hash;
+         encodedKeys[size] = utxo.output.encodedKey;
+         coins[size]       = utxo.output.coins;
+         versions[size]    = utxo.output.version;
+         ids[size]         = utxo.output.id;
+         size++;
+      });
+   }
+
+
+   // Write snapshot as Json.
+   public void write(Writer writer)
+   {
+      JsonGenerator generator = Json.createGenerator(writer);
+
+      generator.writeStartObject();
+      generator.write("walSequence", walSequence);
+      generator.writeStartArray("utxos");
+      for (int i = 0; i < size; i++)
+      {
+         String publicKeyString = "";
+         if (encodedKeys[i] != null)
+         {
+            publicKeyString = Base64.getEncoder().encodeToString(encodedKeys[i]);
+         }
+         else
+         {
+            logger.severe("Cannot convert publicKey to string");
+         }
+         generator.writeStartObject();
+         generator.write("hash", hashes[i]);
+         generator.writeStartObject("output");
+         generator.write("publicKey", publicKeyString);
+         generator.write("coins", coins[i] + "");
+         generator.write("version", versions[i]);
+         generator.write("id", ids[i].toString());
+         generator.writeEnd();
+         generator.writeEnd();
+      }
+      generator.writeEnd();
+      generator.writeEnd();
+      generator.flush();
+   }
+
+
+   // Chunk of captured UTXOs, as the outputs of a transaction.
+   // Outputs carry their encoded keys, which is all the binary form sends.
+   public Transaction chunk(int from, int to)
+   {
+      Transaction tx = new Transaction();
+
+      for (int i = from; i < to; i++)
+      {
+         Transaction.Output output = tx.newOutput(null, coins[i]);
+         output.encodedKey    = encodedKeys[i];
+         output.publicKeyHash = hashes[i];
+         output.version       = versions[i];
+         output.id            = ids[i];
+         tx.outputs.add(output);
+      }
+      return(tx);
+   }
+
+
+   // Read Json snapshot into ledger.
+   // Entries are parsed in one pass; key decoding is spread over the
+   // fork-join pool with a bounded number of chunks in flight.
+   public static void read(Reader reader, Ledger ledger)
+   {
+      ForkJoinPool                 pool        = ForkJoinPool.commonPool();
+      int                          maxInFlight = pool.getParallelism() * 2;
+      ArrayDeque<ForkJoinTask<?>>  inFlight    = new ArrayDeque<ForkJoinTask<?>>();
+      long                         walSequence = 0;
+      String                       key         = null;
+      int                          depth       = 0;
+      boolean                      inUtxos     = false;
+      int                          hash        = 0;
+      String                       publicKey   = null;
+      float                        coin        = 0.0f;
+      int                          version     = 0;
+      UUID                         id          = null;
+      int                          n           = 0;
+      int[]                        chunkHashes = new int[CHUNK_SIZE];
+      String[]                     chunkKeys   = new String[CHUNK_SIZE];
+      float[]                      chunkCoins  = new float[CHUNK_SIZE];
+      int[]                        chunkVers   = new int[CHUNK_SIZE];
+      UUID[]                       chunkIds    = new UUID[CHUNK_SIZE];
+
+      try (JsonParser parser = Json.createParser(reader))
+         {
+            while (parser.hasNext())
+            {
+               switch (parser.next())
+               {
+               case KEY_NAME:
+                  key = parser.getString();
+                  break;
+
+               case START_OBJECT:
+                  depth++;
+                  if (inUtxos && (depth == 2))
+                  {
+                     hash      = 0;
+                     publicKey = null;
+                     coin      = 0.0f;
+                     version   = 0;
+                     id        = null;
+                  }
+                  break;
+
+               case END_OBJECT:
+                  if (inUtxos && (depth == 2))
+                  {
+                     chunkHashes[n] = hash;
+                     chunkKeys[n]   = publicKey;
+                     chunkCoins[n]  = coin;
+                     chunkVers[n]   = version;
+                     chunkIds[n]    = id;
+                     if (++n == CHUNK_SIZE)
+                     {
+                        submit(pool, inFlight, maxInFlight, ledger, chunkHashes, chunkKeys, chunkCoins, chunkVers, chunkIds, n);
+                        chunkHashes = new int[CHUNK_SIZE];
+                        chunkKeys   = new String[CHUNK_SIZE];
+                        chunkCoins  = new float[CHUNK_SIZE];
+                        chunkVers   = new int[CHUNK_SIZE];
+                        chunkIds    = new UUID[CHUNK_SIZE];
+                        n           = 0;
+                     }
+                  }
+                  depth--;
+                  break;
+
+               case START_ARRAY:
+                  if ((depth == 1) && "utxos".equals(key))
+                  {
+                     inUtxos = true;
+                  }
+                  break;
+
+               case END_ARRAY:
+                  if (depth == 1)
+                  {
+                     inUtxos = false;
+                  }
+                  break;
+
+               case VALUE_NUMBER:
+                  if ((depth == 1) && "walSequence".equals(key))
+                  {
+                     walSequence = parser.getLong();
+                  }
+                  else if (inUtxos && (depth == 2) && "hash".equals(key))
+                  {
+                     hash = parser.getInt();
+                  }
+                  else if (inUtxos && (depth == 3) && "coins".equals(key))
+                  {
+                     coin = parser.getBigDecimal().floatValue();
+                  }
+                  else if (inUtxos && (depth == 3) && "version".equals(key))
+                  {
+                     version = parser.getInt();
+                  }
+                  break;
+
+               case VALUE_STRING:
+                  if (inUtxos && (depth == 3))
+                  {
+                     if ("publicKey".equals(key))
+                     {
+                        publicKey = parser.getString();
+                     }
+                     else if ("coins".equals(key))
+                     {
+                        coin = Float.parseFloat(parser.getString());
+                     }
+                     else if ("id".equals(key))
+                     {
+                        id = UUID.fromString(parser.getString());
+                     }
+                  }
+                  break;
+
+               default:
+                  break;
+               }
+            }
+         }
+      if (n > 0)
+      {
+         submit(pool, inFlight, maxInFlight, ledger, chunkHashes, chunkKeys, chunkCoins, chunkVers, chunkIds, n);
+      }
+      while (!inFlight.isEmpty())
+      {
+         inFlight.poll().join();
+      }
+      ledger.walSequence = walSequence;
+   }
+
+
+   // Submit chunk for decoding, first waiting for the oldest chunk if too
+   // many are in flight.
+   private static void submit(ForkJoinPool pool, ArrayDeque<ForkJoinTask<?>> inFlight, int maxInFlight,
+                              final Ledger ledger, final int[] hashes, final String[] keys,
+                              final float[] coins, final int[] versions, final UUID[] ids, final int n)
+   {
+      if (inFlight.size() >= maxInFlight)
+      {
+         inFlight.poll().join();
+      }
+      inFlight.add(pool.submit(() -> decode(ledger, hashes, keys, coins, versions, ids, n)));
+   }
+
+
+   // Decode chunk public keys and add UTXOs. A UTXO saved without its
+   // output id is given a new one.
+   private static void decode(Ledger ledger, int[] hashes, String[] keys, float[] coins, int[] versions,
+                              UUID[] ids, int n)
+   {
+      Transaction tx = new Transaction();
+
+      for (int i = 0; i < n; i++)
+      {
+         PublicKey publicKey = null;
+         try
+         {
+            publicKey = Utils.stringToPublicKey(keys[i]);
+         }
+         catch (Exception e)
+         {
+            logger.severe("Cannot convert string to publicKey");
+         }
+         Transaction.Output output = tx.newOutput(publicKey, coins[i]);
+         output.version = versions[i];
+         if (ids[i] != null) { output.id = ids[i]; }
+         ledger.utxos.put(hashes[i], ledger.newUTXO(output));
+      }
+   }
+}
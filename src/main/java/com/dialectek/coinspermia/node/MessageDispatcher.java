@@ -0,0 +1,248 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Message dispatcher.
+ * Moves node endpoint message handling off the websocket I/O threads onto
+ * bounded worker pools. Peer protocol messages, and the responses peers
+ * send back on pooled sessions, run on lanes of one thread each, chosen by
+ * session, so a peer's messages are handled in the order sent. Client messages are rate limited and run on a pool shared fairly
+ * among client sessions. Peer traffic has priority: client requests are
+ * refused with a BUSY result when their queue is full or the peer lanes
+ * are backlogged, so clients back off before quorum rounds slow down.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.websocket.Session;
+
+import com.dialectek.coinspermia.shared.Histogram;
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageEncoder;
+import com.dialectek.coinspermia.shared.Parameters;
+
+public class MessageDispatcher
+{
+   // Queued message handler.
+   private class Task implements Runnable
+   {
+      Runnable  handler;
+      Histogram wait;
+      long      enqueued;
+
+      Task(Runnable handler, Histogram wait)
+      {
+         this.handler = handler;
+         this.wait    = wait;
+         enqueued     = System.nanoTime();
+      }
+
+
+      public void run()
+      {
+         wait.record((System.nanoTime() - enqueued) / 1000);
+         try
+         {
+            handler.run();
+         }
+         catch (Exception e)
+         {
+            logger.severe("Cannot handle message: " + e.getMessage());
+         }
+      }
+   }
+
+   // Peer lanes and client pool.
+   private ThreadPoolExecutor[] peerLanes;
+   private FairScheduler        clientPool;
+
+   // Client rate limits.
+   public RateLimiter rateLimiter;
+
+   // Peer lane backlog at which client requests are refused.
+   public int peerBacklogThreshold;
+
+   // Metrics.
+   public Histogram  peerWait;
+   public Histogram  clientWait;
+   public AtomicLong peerOverflows;
+   public AtomicLong busy;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(MessageDispatcher.class .getName());
+
+   // Constructor.
+   public MessageDispatcher(int peerLanes, int peerQueueCapacity,
+                            int clientThreads, int clientQueueCapacity,
+                            int clientSessionQueueCapacity, int peerBacklogThreshold,
+                            RateLimiter rateLimiter)
+   {
+      this.peerLanes = new ThreadPoolExecutor[peerLanes];
+      for (int i = 0; i < peerLanes; i++)
+      {
+         this.peerLanes[i] = newPool("peer-worker", 1, peerQueueCapacity);
+      }
+      peerWait   = new Histogram("peer message queue wait", "us");
+      clientWait = new Histogram("client message queue wait", "us");
+      clientPool = new FairScheduler("client-worker", clientThreads, clientQueueCapacity,
+                                     clientSessionQueueCapacity, Parameters.CLIENT_SCHEDULER_QUANTUM, clientWait);
+      this.peerBacklogThreshold = peerBacklogThreshold;
+      this.rateLimiter          = rateLimiter;
+      peerOverflows = new AtomicLong();
+      busy          = new AtomicLong();
+   }
+
+
+   // New bounded worker pool.
+   private static ThreadPoolExecutor newPool(final String name, int threads, int queueCapacity)
+   {
+      return(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                    new ThreadFactory()
+                                    {
+                                       public Thread newThread(Runnable runnable)
+                                       {
+                                          Thread thread = new Thread(runnable, name);
+                                          thread.setDaemon(true);
+                                          return(thread);
+                                       }
+                                    }));
+   }
+
+
+   // Peer protocol message?
+   public static boolean peerMessage(int type)
+   {
+      return((type == Message.LOCK_REQUEST) ||
+             (type == Message.UNLOCK_REQUEST) ||
+             (type == Message.COMMIT_REQUEST) ||
+             (type == Message.COMMIT_BATCH_REQUEST) ||
+             (type == Message.LEDGER_SYNC_REQUEST) ||
+             (type == Message.SNAPSHOT_REQUEST) ||
+             (type == Message.CONNECTION_REQUEST));
+   }
+
+
+   // Dispatch message handler.
+   public void dispatch(Message message, Session session, Runnable handler)
+   {
+      if (peerMessage(message.type))
+      {
+         dispatchPeer(message, session, handler);
+         return;
+      }
+      boolean admitted = (peerBacklog() < peerBacklogThreshold) && rateLimiter.admit(message, session);
+      if (!admitted && refuse(message, session)) { return; }
+      if (!clientPool.offer(session.getId(), handler, cost(message)))
+      {
+         // Not queued: the session gets back the token it was charged.
+         if (admitted) { rateLimiter.refund(session); }
+         if (!refuse(message, session))
+         {
+            logger.warning("Dropped message type=" + message.type + ", session id=" + session.getId() + ": node busy");
+         }
+      }
+   }
+
+
+   // Dispatch peer message handler to the session's lane.
+   // A peer message that overflows its lane is refused if the peer expects
+   // a response, otherwise handled on the calling thread rather than lost.
+   public void dispatchPeer(Message message, Session session, Runnable handler)
+   {
+      ThreadPoolExecutor lane = peerLanes[(session.getId().hashCode() & 0x7fffffff) % peerLanes.length];
+
+      try
+      {
+         lane.execute(new Task(handler, peerWait));
+      }
+      catch (RejectedExecutionException e)
+      {
+         peerOverflows.incrementAndGet();
+         if (!refuse(message, session))
+         {
+            handler.run();
+         }
+      }
+   }
+
+
+   // Client message cost: a transaction costs more with more inputs to
+   // verify and lock.
+   private static int cost(Message message)
+   {
+      if ((message.type == Message.TRANSACTION_REQUEST) && (message.transaction != null) &&
+          (message.transaction.inputs != null))
+      {
+         return(1 + message.transaction.inputs.size());
+      }
+      return(1);
+   }
+
+
+   // Peer lane backlog.
+   public int peerBacklog()
+   {
+      int n = 0;
+
+      for (ThreadPoolExecutor lane : peerLanes)
+      {
+         n += lane.getQueue().size();
+      }
+      return(n);
+   }
+
+
+   // Refuse request with a BUSY response: returns false if the request
+   // type has no response.
+   private boolean refuse(Message message, Session session)
+   {
+      switch (message.type)
+      {
+      case Message.TRANSACTION_REQUEST:
+         message.type = Message.TRANSACTION_RESPONSE;
+         break;
+
+      case Message.LOCK_REQUEST:
+         message.type        = Message.LOCK_RESPONSE;
+         message.transaction = null;
+         break;
+
+      case Message.CENSUS_REQUEST:
+         message.type = Message.CENSUS_RESPONSE;
+         break;
+
+      default:
+         return(false);
+      }
+      busy.incrementAndGet();
+      message.sender = Node.node.address;
+      message.result = Parameters.BUSY;
+      try
+      {
+         MessageEncoder.send(session, message);
+      }
+      catch (Exception e)
+      {
+         logger.severe("Cannot send busy response, session id=" + session.getId() + ": " + e.getMessage());
+      }
+      return(true);
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      return("Message dispatch: peer backlog=" + peerBacklog() + ", client backlog=" + clientPool.size() +
+             " from " + clientPool.clients() + " sessions" +
+             ", peer overflows=" + peerOverflows.get() + ", busy responses=" + busy.get() +
+             "\n\t" + peerWait + "\n\t" + clientWait);
+   }
+}
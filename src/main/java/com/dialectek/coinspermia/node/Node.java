@@ -9,22 +9,18 @@ package com.dialectek.coinspermia.node;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.websocket.Session;
-
-import org.glassfish.tyrus.client.ClientManager;
 import org.glassfish.tyrus.server.Server;
 
 import com.dialectek.coinspermia.shared.Message;
@@ -34,7 +30,7 @@ import com.dialectek.coinspermia.shared.Utils;
 public class Node
 {
    // Options.
-   public static final String Options = "Options:\n\t[-port <port> (defaults to " + Parameters.DEFAULT_PORT + ")]\n\t[-bootstrapPeer <address of peer to connect to> (repeatable)]\n\t[-bootstrapPeerFile <file containing peer addresses> (defaults to " + Parameters.DEFAULT_BOOTSTRAP_PEER_FILE + ")]\n\t[-maxPeerConnections <maximum number of peer connections> (defaults to " + Parameters.DEFAULT_MAX_PEER_CONNECTIONS + ")]\n\t[-password <password> (use password authorization mode; password alternatively read from " + Parameters.PASSWORD_FILE + ")]\n\t[-randomSeed <random number seed> (defaults to " + Parameters.DEFAULT_RANDOM_SEED + ")]\n\t[-logfile <log file name> (defaults to " + Parameters.DEFAULT_LOG_FILE + ") | \"none\"]";
+   public static final String Options = "Options:\n\t[-port <port> (defaults to " + Parameters.DEFAULT_PORT + ")]\n\t[-bootstrapPeer <address of peer to connect to> (repeatable)]\n\t[-bootstrapPeerFile <file containing peer addresses> (defaults to " + Parameters.DEFAULT_BOOTSTRAP_PEER_FILE + ")]\n\t[-maxPeerConnections <maximum number of peer connections> (defaults to " + Parameters.DEFAULT_MAX_PEER_CONNECTIONS + ")]\n\t[-password <password> (use password authorization mode; password alternatively read from " + Parameters.PASSWORD_FILE + ")]\n\t[-randomSeed <random number seed> (defaults to " + Parameters.DEFAULT_RANDOM_SEED + ")]\n\t[-walFsyncWindow <write-ahead log group commit window in ms> (defaults to " + Parameters.DEFAULT_WAL_FSYNC_WINDOW + ")]\n\t[-gossipFanout <peers each commit is forwarded to; 0 for all> (defaults to " + Parameters.DEFAULT_GOSSIP_FANOUT + ")]\n\t[-commitBatchLinger <commit batch linger time in ms; 0 for no batching> (defaults to " + Parameters.DEFAULT_COMMIT_BATCH_LINGER + ")]\n\t[-lockHedgePercentile <member vote time percentile after which a lock request is hedged; 0 for no hedging> (defaults to " + Parameters.DEFAULT_LOCK_HEDGE_PERCENTILE + ")]\n\t[-logfile <log file name> (defaults to " + Parameters.DEFAULT_LOG_FILE + ") | \"none\"]";
 
    // Network address and port.
    public String address = "localhost:" + Parameters.DEFAULT_PORT;
@@ -46,17 +42,48 @@ public class Node
    // Maximum peer connections.
    public int maxPeerConnections = Parameters.DEFAULT_MAX_PEER_CONNECTIONS;
 
-   // Peer connection density.
-   public int peerConnectionDensity = Parameters.MIN_PEER_CONNECTIONS;
+   // Lock hedge percentile (0 = no hedging).
+   public int lockHedgePercentile = Parameters.DEFAULT_LOCK_HEDGE_PERCENTILE;
+
+   // Peer connection density, and densities by network size.
+   public int                                 peerConnectionDensity   = Parameters.MIN_PEER_CONNECTIONS;
+   public ConcurrentHashMap<Integer, Integer> peerConnectionDensities = new ConcurrentHashMap<Integer, Integer>();
 
    // Endpoint server.
    public Server endpoint;
 
+   // Peer sessions.
+   public PeerSessionPool peerSessions;
+
+   // Transaction quorum statistics.
+   public QuorumStats quorumStats;
+
+   // Transaction time-outs and retries.
+   public TimeoutScheduler timeouts;
+
+   // In-flight transactions locked for other nodes' quorums.
+   public TransactionCache transactionCache;
+
+   // Commit dissemination.
+   public CommitGossip gossip;
+
+   // Ledger reconciliation with peers.
+   public AntiEntropy antiEntropy;
+
+   // Ledger snapshot transfer to and from peers.
+   public SnapshotTransfer snapshotTransfer;
+
+   // Endpoint message dispatcher.
+   public MessageDispatcher dispatcher;
+
+   // Peer health table.
+   public PeerHealth peerHealth;
+
    // Ledger.
    public Ledger ledger;
 
    // Transaction quorums.
-   public Map<UUID, TransactionQuorum> transactionQuorums = Collections.synchronizedMap(new HashMap<UUID, TransactionQuorum>());
+   public ConcurrentHashMap<UUID, TransactionQuorum> transactionQuorums = new ConcurrentHashMap<UUID, TransactionQuorum>();
 
    // Password.
    public String password;
@@ -73,7 +100,9 @@ public class Node
 
    // Constructor.
    public Node(int port, int maxPeerConnections,
-               ArrayList<String> bootstrapPeers, String password, int randomSeed) throws Exception
+               ArrayList<String> bootstrapPeers, String password, int randomSeed,
+               int walFsyncWindow, int gossipFanout, int commitBatchLinger,
+               int lockHedgePercentile) throws Exception
    {
       // Check for singleton.
       if (node != null)
@@ -83,8 +112,9 @@ public class Node
       node = this;
 
       this.port = port;
-      this.maxPeerConnections = maxPeerConnections;
-      this.password           = password;
+      this.maxPeerConnections  = maxPeerConnections;
+      this.lockHedgePercentile = lockHedgePercentile;
+      this.password            = password;
       if (password == null)
       {
          logger.info("Password authorization disabled");
@@ -124,9 +154,43 @@ public class Node
       // Random number generator.
       randomizer = new Random(randomSeed);
 
+      // Create peer health table.
+      peerHealth = new PeerHealth();
+
+      // Create peer session pool.
+      peerSessions = new PeerSessionPool();
+
+      // Create transaction quorum statistics.
+      quorumStats = new QuorumStats();
+
+      // Create timeout scheduler.
+      timeouts = new TimeoutScheduler(Parameters.TIMEOUT_TICK, Parameters.TIMEOUT_WHEEL_SIZE,
+                                      Parameters.TIMEOUT_WORKER_THREADS);
+
+      // Create in-flight transaction cache.
+      transactionCache = new TransactionCache(Parameters.TRANSACTION_CACHE_TIME_OUT);
+
+      // Create commit gossip.
+      gossip = new CommitGossip(gossipFanout, Parameters.GOSSIP_SEEN_FILTER_CAPACITY,
+                                Parameters.GOSSIP_SEEN_FILTER_FALSE_POSITIVE_RATE,
+                                commitBatchLinger, Parameters.COMMIT_BATCH_MAX_SIZE);
+
+      // Create anti-entropy.
+      antiEntropy = new AntiEntropy();
+
+      // Create snapshot transfer.
+      snapshotTransfer = new SnapshotTransfer();
+
+      // Create message dispatcher.
+      dispatcher = new MessageDispatcher(Parameters.PEER_WORKER_LANES, Parameters.PEER_WORKER_QUEUE_CAPACITY,
+                                         Parameters.CLIENT_WORKER_THREADS, Parameters.CLIENT_WORKER_QUEUE_CAPACITY,
+                                         Parameters.CLIENT_SESSION_QUEUE_CAPACITY, Parameters.PEER_BACKLOG_BUSY_THRESHOLD,
+                                         new RateLimiter(Parameters.CLIENT_SESSION_RATE, Parameters.CLIENT_SESSION_BURST,
+                                                         Parameters.CLIENT_KEY_RATE, Parameters.CLIENT_KEY_BURST));
+
       // Create ledger.
       ledger = new Ledger();
-      ledger.load(Parameters.LEDGER_FILE);
+      ledger.open(Parameters.LEDGER_FILE, Parameters.WAL_FILE, walFsyncWindow);
    }
 
 
@@ -137,9 +201,6 @@ public class Node
       endpoint = new Server("localhost", port, "/ws", NodeEndpoint.class );
       endpoint.start();
 
-      // Create client.
-      ClientManager nodeClient = ClientManager.createClient();
-
       // Periodically refresh peers.
       while (true)
       {
@@ -159,9 +220,12 @@ public class Node
             message.password = password;
             try
             {
-               Session session = nodeClient.connectToServer(ClientEndpoint.class,
-                                                            new URI(Parameters.WEBSOCKET_PROTOCOL + "://" + refreshPeer + "/ws" + Parameters.URI));
-               session.getBasicRemote().sendObject(message);
+               peerSessions.send(refreshPeer, message);
+            }
+            catch (PeerSessionPool.DeferredException e)
+            {
+               // Peer is in reconnect back-off: keep it.
+               logger.fine(e.getMessage());
             }
             catch (Exception e)
             {
@@ -173,6 +237,27 @@ public class Node
             }
          }
 
+         // Reconcile ledger with a random peer, unless a snapshot is
+         // being transferred.
+         String syncPeer = null;
+         synchronized (connectedPeers)
+         {
+            if (connectedPeers.size() > 0)
+            {
+               Object[] peers = connectedPeers.toArray();
+               syncPeer       = (String)peers[randomizer.nextInt(peers.length)];
+            }
+         }
+         if ((syncPeer != null) && !snapshotTransfer.active)
+         {
+            antiEntropy.start(syncPeer);
+         }
+
+         // Maintain peer sessions.
+         peerSessions.maintain();
+         dispatcher.rateLimiter.prune(null);
+         logStats();
+
          try
          {
             Thread.sleep(Parameters.PEER_REFRESH_FREQ);
@@ -182,6 +267,28 @@ public class Node
    }
 
 
+   // Log statistics, at FINE level.
+   private void logStats()
+   {
+      if (!logger.isLoggable(Level.FINE)) { return; }
+      logger.fine(dispatcher.stats());
+      logger.fine(dispatcher.rateLimiter.stats());
+      logger.fine(peerSessions.stats());
+      logger.fine(peerHealth.stats());
+      logger.fine(quorumStats.stats());
+      logger.fine(ledger.signatures.stats());
+      logger.fine(transactionCache.stats());
+      logger.fine(gossip.stats());
+      logger.fine(gossip.batcher.stats());
+      logger.fine(antiEntropy.stats());
+      logger.fine(snapshotTransfer.stats());
+      if (ledger.wal != null)
+      {
+         logger.fine(ledger.wal.stats());
+      }
+   }
+
+
    // Add peer to connections.
    public boolean addPeer(String peer)
    {
@@ -229,22 +336,40 @@ public class Node
 
 
    // Calculate peer connection density.
+   // Densities are cached by network size.
    public void calculatePeerConnectionDensity()
    {
-      int n = connectedPeers.size() + 1;
+      int density = peerConnectionDensities.computeIfAbsent(connectedPeers.size() + 1, Node::peerConnectionDensity);
 
-      for (peerConnectionDensity = 0; peerConnectionDensity < n; peerConnectionDensity++)
+      if (density < Parameters.MIN_PEER_CONNECTIONS)
       {
-         float p = Utils.intersectionProbability(n, peerConnectionDensity + 1, peerConnectionDensity + 1);
-         if (p >= Parameters.TRANSACTION_INTERSECTION_PROBABILITY)
-         {
-            break;
-         }
+         density = Parameters.MIN_PEER_CONNECTIONS;
       }
-      if (peerConnectionDensity < Parameters.MIN_PEER_CONNECTIONS)
+      peerConnectionDensity = density;
+   }
+
+
+   // Peer connection density for network size: the least density whose
+   // transaction intersection probability meets the target. Probability
+   // grows with density, so the least is found by binary search.
+   public static int peerConnectionDensity(int n)
+   {
+      int low  = 0;
+      int high = n;
+
+      while (low < high)
       {
-         peerConnectionDensity = Parameters.MIN_PEER_CONNECTIONS;
+         int density = (low + high) >>> 1;
+         if (Utils.intersectionProbability(n, density + 1, density + 1) >= Parameters.TRANSACTION_INTERSECTION_PROBABILITY)
+         {
+            high = density;
+         }
+         else
+         {
+            low = density + 1;
+         }
       }
+      return(low);
    }
 
 
@@ -255,10 +380,14 @@ public class Node
 
       // Get arguments.
       int    port = Parameters.DEFAULT_PORT;
-      int    maxPeerConnections = Parameters.MIN_PEER_CONNECTIONS;
-      String password           = null;
-      int    randomSeed         = Parameters.DEFAULT_RANDOM_SEED;
-      String logfile            = Parameters.DEFAULT_LOG_FILE;
+      int    maxPeerConnections  = Parameters.MIN_PEER_CONNECTIONS;
+      String password            = null;
+      int    randomSeed          = Parameters.DEFAULT_RANDOM_SEED;
+      String logfile             = Parameters.DEFAULT_LOG_FILE;
+      int    walFsyncWindow      = Parameters.DEFAULT_WAL_FSYNC_WINDOW;
+      int    gossipFanout        = Parameters.DEFAULT_GOSSIP_FANOUT;
+      int    commitBatchLinger   = Parameters.DEFAULT_COMMIT_BATCH_LINGER;
+      int    lockHedgePercentile = Parameters.DEFAULT_LOCK_HEDGE_PERCENTILE;
       for (int i = 0; i < args.length; i++)
       {
          if (args[i].equals("-port"))
@@ -331,6 +460,66 @@ public class Node
             }
             randomSeed = Integer.parseInt(args[i]);
          }
+         else if (args[i].equals("-walFsyncWindow"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Options);
+               return;
+            }
+            walFsyncWindow = Integer.parseInt(args[i]);
+            if (walFsyncWindow < 0)
+            {
+               System.err.println("Invalid write-ahead log fsync window " + walFsyncWindow);
+               return;
+            }
+         }
+         else if (args[i].equals("-gossipFanout"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Options);
+               return;
+            }
+            gossipFanout = Integer.parseInt(args[i]);
+            if (gossipFanout < 0)
+            {
+               System.err.println("Invalid gossip fanout " + gossipFanout);
+               return;
+            }
+         }
+         else if (args[i].equals("-commitBatchLinger"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Options);
+               return;
+            }
+            commitBatchLinger = Integer.parseInt(args[i]);
+            if (commitBatchLinger < 0)
+            {
+               System.err.println("Invalid commit batch linger time " + commitBatchLinger);
+               return;
+            }
+         }
+         else if (args[i].equals("-lockHedgePercentile"))
+         {
+            i++;
+            if (i == args.length)
+            {
+               System.err.println(Options);
+               return;
+            }
+            lockHedgePercentile = Integer.parseInt(args[i]);
+            if ((lockHedgePercentile < 0) || (lockHedgePercentile >= 100))
+            {
+               System.err.println("Invalid lock hedge percentile " + lockHedgePercentile);
+               return;
+            }
+         }
          else if (args[i].equals("-logfile"))
          {
             i++;
@@ -436,7 +625,8 @@ public class Node
       // Create and run node.
       try
       {
-         Node node = new Node(port, maxPeerConnections, bootstrapPeers, password, randomSeed);
+         Node node = new Node(port, maxPeerConnections, bootstrapPeers, password, randomSeed,
+                              walFsyncWindow, gossipFanout, commitBatchLinger, lockHedgePercentile);
          node.run();
       }
       catch (Exception e)
@@ -6,7 +6,8 @@
 
 package com.dialectek.coinspermia.node;
 
-import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -15,15 +16,12 @@ import java.util.UUID;
 import java.util.logging.Logger;
 
 import javax.websocket.CloseReason;
+import javax.websocket.DecodeException;
 import javax.websocket.OnClose;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.Session;
 
-import org.glassfish.tyrus.client.ClientManager;
-
-import javax.websocket.CloseReason.CloseCodes;
-
 import com.dialectek.coinspermia.shared.Message;
 import com.dialectek.coinspermia.shared.MessageDecoder;
 import com.dialectek.coinspermia.shared.MessageEncoder;
@@ -40,6 +38,27 @@ public class NodeEndpoint
    public void onOpen(Session session)
    {
       sessions.add(session);
+
+      // Peer node requesting the binary codec?
+      String query = session.getQueryString();
+      if ((query != null) && query.contains(Parameters.BINARY_CODEC_QUERY))
+      {
+         MessageEncoder.setBinary(session);
+      }
+   }
+
+
+   @OnMessage
+   public void onMessage(ByteBuffer buffer, Session session)
+   {
+      try
+      {
+         onMessage(MessageDecoder.Binary.fromByteBuffer(buffer), session);
+      }
+      catch (DecodeException e)
+      {
+         logger.severe("Cannot decode binary message, session id=" + session.getId() + ": " + e.getMessage());
+      }
    }
 
 
@@ -55,6 +74,20 @@ public class NodeEndpoint
          return;
       }
 
+      // Note peer activity.
+      if (MessageDispatcher.peerMessage(message.type) && (message.sender != null))
+      {
+         Node.node.peerHealth.seen(message.sender);
+      }
+
+      // Handle on a worker.
+      Node.node.dispatcher.dispatch(message, session, () -> handle(message, session));
+   }
+
+
+   // Handle message.
+   private void handle(Message message, Session session)
+   {
       switch (message.type)
       {
       case Message.TRANSACTION_REQUEST:
@@ -75,23 +108,22 @@ public class NodeEndpoint
          {
             if (transaction.type == Transaction.BALANCE)
             {
+               ArrayList<PublicKey> publicKeys = new ArrayList<PublicKey>();
                for (Transaction.Output output : message.transaction.outputs)
                {
-                  output.coins = 0.0f;
-                  for (Ledger.UTXO utxo : Node.node.ledger.utxos.values())
-                  {
-                     if (output.publicKey.hashCode() == utxo.output.publicKey.hashCode())
-                     {
-                        output.coins += utxo.output.coins;
-                     }
-                  }
+                  publicKeys.add(output.publicKey);
+               }
+               float[] balances = Node.node.ledger.balancesOf(publicKeys);
+               for (int i = 0; i < balances.length; i++)
+               {
+                  message.transaction.outputs.get(i).coins = balances[i];
                }
                message.type   = Message.TRANSACTION_RESPONSE;
                message.sender = Node.node.address;
                message.result = Parameters.SUCCESS;
                try
                {
-                  session.getBasicRemote().sendObject(message);
+                  MessageEncoder.send(session, message);
                }
                catch (Exception e)
                {
@@ -100,31 +132,28 @@ public class NodeEndpoint
             }
             else
             {
-               // Start transaction quorum.
-               UUID id = message.transaction.id;
+               // Start transaction quorum: registered first, so a duplicate
+               // transaction id is refused, then started outside any lock.
+               UUID              id = message.transaction.id;
+               TransactionQuorum tq = new TransactionQuorum(message.transaction, session);
                txError = true;
-               synchronized (Node.node.transactionQuorums)
+               if (Node.node.transactionQuorums.putIfAbsent(id, tq) == null)
                {
-                  if (!Node.node.transactionQuorums.containsKey(id))
+                  try
                   {
-                     TransactionQuorum tq = new TransactionQuorum(message.transaction, session);
-                     Node.node.transactionQuorums.put(id, tq);
-                     try
-                     {
-                        tq.start();
-                        txError = false;
-                     }
-                     catch (Exception e)
-                     {
-                        Node.node.transactionQuorums.remove(id);
-                        logger.severe("Cannot start transaction quorum, transaction id=" + message.transaction.id + ", session id=" + session.getId() + ": " + e.getMessage());
-                     }
+                     tq.start();
+                     txError = false;
                   }
-                  else
+                  catch (Exception e)
                   {
-                     logger.severe("Cannot start transaction quorum, duplicate transaction id=" + message.transaction.id + ", session id=" + session.getId());
+                     Node.node.transactionQuorums.remove(id, tq);
+                     logger.severe("Cannot start transaction quorum, transaction id=" + message.transaction.id + ", session id=" + session.getId() + ": " + e.getMessage());
                   }
                }
+               else
+               {
+                  logger.severe("Cannot start transaction quorum, duplicate transaction id=" + message.transaction.id + ", session id=" + session.getId());
+               }
             }
          }
          if (txError)
@@ -134,7 +163,7 @@ public class NodeEndpoint
             message.result = Parameters.FAIL;
             try
             {
-               session.getBasicRemote().sendObject(message);
+               MessageEncoder.send(session, message);
             }
             catch (Exception e)
             {
@@ -153,12 +182,13 @@ public class NodeEndpoint
             String sender = message.sender;
             if (sender == null) { sender = "null"; }
             logger.warning("Invalid lock request from unknown sender address " + sender + ", session id=" + session.getId());
-            message.type   = Message.LOCK_RESPONSE;
-            message.sender = Node.node.address;
-            message.result = Parameters.INVALID;
+            message.type        = Message.LOCK_RESPONSE;
+            message.sender      = Node.node.address;
+            message.transaction = null;
+            message.result      = Parameters.INVALID;
             try
             {
-               session.getBasicRemote().sendObject(message);
+               MessageEncoder.send(session, message);
             }
             catch (Exception e)
             {
@@ -175,36 +205,10 @@ public class NodeEndpoint
          break;
 
       case Message.COMMIT_REQUEST:
+      case Message.COMMIT_BATCH_REQUEST:
          if (Node.node.knownPeer(message.sender))
          {
-            if (Node.node.ledger.commit(message.transaction) == Parameters.SUCCESS)
-            {
-               ArrayList<String> peers = new ArrayList<String>();
-               synchronized (Node.node.connectedPeers)
-               {
-                  for (String peer : Node.node.connectedPeers)
-                  {
-                     peers.add(peer);
-                  }
-               }
-               message.sender = Node.node.address;
-               ClientManager client = ClientManager.createClient();
-               for (int i = 0, j = peers.size(); i < j; i++)
-               {
-                  String peer = peers.get(i);
-                  try
-                  {
-                     Session targetSession = client.connectToServer(ClientEndpoint.class,
-                                                                    new URI(Parameters.WEBSOCKET_PROTOCOL + "://" + peer + "/ws" + Parameters.URI));
-                     targetSession.getBasicRemote().sendObject(message);
-                     targetSession.close(new CloseReason(CloseCodes.NORMAL_CLOSURE, "Session close"));
-                  }
-                  catch (Exception e)
-                  {
-                     logger.severe("Cannot propagate transaction to peer " + peer + ", session id=" + session.getId() + ": " + e.getMessage());
-                  }
-               }
-            }
+            Node.node.gossip.receive(message, session);
          }
          else
          {
@@ -214,6 +218,32 @@ public class NodeEndpoint
          }
          break;
 
+      case Message.LEDGER_SYNC_REQUEST:
+         if (Node.node.knownPeer(message.sender))
+         {
+            AntiEntropy.request(message, session);
+         }
+         else
+         {
+            String sender = message.sender;
+            if (sender == null) { sender = "null"; }
+            logger.warning("Invalid ledger sync request from unknown sender address " + sender + ", session id=" + session.getId());
+         }
+         break;
+
+      case Message.SNAPSHOT_REQUEST:
+         if (Node.node.knownPeer(message.sender))
+         {
+            Node.node.snapshotTransfer.serve(message, session);
+         }
+         else
+         {
+            String sender = message.sender;
+            if (sender == null) { sender = "null"; }
+            logger.warning("Invalid snapshot request from unknown sender address " + sender + ", session id=" + session.getId());
+         }
+         break;
+
       case Message.CONNECTION_REQUEST:
          synchronized (Node.node.connectedPeers)
          {
@@ -234,7 +264,7 @@ public class NodeEndpoint
          message.sender = Node.node.address;
          try
          {
-            session.getBasicRemote().sendObject(message);
+            MessageEncoder.send(session, message);
          }
          catch (Exception e)
          {
@@ -258,7 +288,7 @@ public class NodeEndpoint
          message.sender = Node.node.address;
          try
          {
-            session.getBasicRemote().sendObject(message);
+            MessageEncoder.send(session, message);
          }
          catch (Exception e)
          {
@@ -288,5 +318,6 @@ public class NodeEndpoint
    public void onClose(Session session, CloseReason closeReason)
    {
       sessions.remove(session);
+      Node.node.dispatcher.rateLimiter.prune(session);
    }
 }
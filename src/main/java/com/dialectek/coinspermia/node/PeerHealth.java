@@ -0,0 +1,218 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Peer health table.
+ * Tracks each peer's round trip time and error rate as exponentially
+ * weighted moving averages, and when it was last heard from, fed by lock
+ * rounds, failed sends and incoming messages. Quorum members are sampled
+ * without replacement with weights from the table: a peer is weighted 1
+ * less its error rate, and a peer whose round trip time is several times
+ * the median is weighted the floor, never zero. Healthy peers are thus
+ * still chosen uniformly, as the intersection probability behind the peer
+ * connection density assumes, while a slow or half-dead peer is rarely
+ * chosen. Measurements older than the stale time are forgotten, so a peer
+ * that recovers is weighted 1 again, and slow peers are re-measured.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.dialectek.coinspermia.shared.Parameters;
+
+public class PeerHealth
+{
+   // Peer entry.
+   public static class Entry
+   {
+      public double rtt;
+      public double errorRate;
+      public long   samples;
+      public long   sampleTime;
+      public long   lastSeen;
+   }
+
+   // Entries by peer address.
+   private ConcurrentHashMap<String, Entry> entries;
+
+   // Averaging weight of a new sample, slow round trip time factor over
+   // the median, minimum selection weight, and stale time (ms).
+   public double alpha;
+   public double slowFactor;
+   public double minWeight;
+   public long   staleTime;
+
+   // Constructor.
+   public PeerHealth(double alpha, double slowFactor, double minWeight, long staleTime)
+   {
+      this.alpha      = alpha;
+      this.slowFactor = slowFactor;
+      this.minWeight  = minWeight;
+      this.staleTime  = staleTime;
+      entries         = new ConcurrentHashMap<String, Entry>();
+   }
+
+
+   // Constructor with default parameters.
+   public PeerHealth()
+   {
+      this(Parameters.PEER_HEALTH_EWMA_ALPHA, Parameters.PEER_HEALTH_SLOW_FACTOR,
+           Parameters.PEER_HEALTH_MIN_WEIGHT, Parameters.PEER_HEALTH_STALE_TIME);
+   }
+
+
+   // Get entry for peer.
+   private Entry entry(String peer)
+   {
+      return(entries.computeIfAbsent(peer, address -> new Entry()));
+   }
+
+
+   // Record successful exchange with round trip time (us).
+   public void success(String peer, long rtt)
+   {
+      Entry entry = entry(peer);
+
+      synchronized (entry)
+      {
+         long now = System.currentTimeMillis();
+         if ((entry.samples == 0) || ((now - entry.sampleTime) >= staleTime))
+         {
+            entry.rtt       = rtt;
+            entry.errorRate = 0.0;
+            entry.samples   = 0;
+         }
+         else
+         {
+            entry.rtt       += alpha * (rtt - entry.rtt);
+            entry.errorRate -= alpha * entry.errorRate;
+         }
+         entry.samples++;
+         entry.sampleTime = entry.lastSeen = now;
+      }
+   }
+
+
+   // Record failed exchange: an error or no response.
+   public void failure(String peer)
+   {
+      Entry entry = entry(peer);
+
+      synchronized (entry)
+      {
+         long now = System.currentTimeMillis();
+         if ((entry.samples == 0) || ((now - entry.sampleTime) >= staleTime))
+         {
+            entry.errorRate = 1.0;
+            entry.samples   = 0;
+         }
+         else
+         {
+            entry.errorRate += alpha * (1.0 - entry.errorRate);
+         }
+         entry.samples++;
+         entry.sampleTime = now;
+      }
+   }
+
+
+   // Record message from peer.
+   public void seen(String peer)
+   {
+      entry(peer).lastSeen = System.currentTimeMillis();
+   }
+
+
+   // Forget peer.
+   public void remove(String peer)
+   {
+      entries.remove(peer);
+   }
+
+
+   // Median round trip time of peers with current measurements, or zero.
+   private double medianRtt(Collection<String> peers, long now)
+   {
+      double[] rtts = new double[peers.size()];
+      int      n    = 0;
+
+      for (String peer : peers)
+      {
+         Entry entry = entries.get(peer);
+         if ((entry != null) && (entry.rtt > 0.0) && ((now - entry.sampleTime) < staleTime))
+         {
+            rtts[n++] = entry.rtt;
+         }
+      }
+      if (n == 0) { return(0.0); }
+      Arrays.sort(rtts, 0, n);
+      return(rtts[n / 2]);
+   }
+
+
+   // Selection weight of peer.
+   public double weight(String peer, double median, long now)
+   {
+      Entry entry = entries.get(peer);
+
+      if ((entry == null) || (entry.samples == 0) || ((now - entry.sampleTime) >= staleTime))
+      {
+         return(1.0);
+      }
+      if ((median > 0.0) && (entry.rtt > (median * slowFactor)))
+      {
+         return(minWeight);
+      }
+      return(Math.max(minWeight, 1.0 - entry.errorRate));
+   }
+
+
+   // Select peers by weighted random sampling without replacement
+   // (Efraimidis-Spirakis: the peers with the largest u^(1/weight)).
+   public ArrayList<String> select(ArrayList<String> peers, int count, Random randomizer)
+   {
+      int               n        = peers.size();
+      long              now      = System.currentTimeMillis();
+      double            median   = medianRtt(peers, now);
+      double[]          keys     = new double[n];
+      Integer[]         order    = new Integer[n];
+      ArrayList<String> selected = new ArrayList<String>();
+
+      for (int i = 0; i < n; i++)
+      {
+         keys[i]  = Math.log(randomizer.nextDouble()) / weight(peers.get(i), median, now);
+         order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Double.compare(keys[b], keys[a]));
+      for (int i = 0; i < count && i < n; i++)
+      {
+         selected.add(peers.get(order[i]));
+      }
+      return(selected);
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      long              now     = System.currentTimeMillis();
+      ArrayList<String> peers   = new ArrayList<String>(entries.keySet());
+      double            median  = medianRtt(peers, now);
+      int               slow    = 0;
+      int               failing = 0;
+
+      for (String peer : peers)
+      {
+         Entry entry = entries.get(peer);
+         if ((entry == null) || ((now - entry.sampleTime) >= staleTime)) { continue; }
+         if ((median > 0.0) && (entry.rtt > (median * slowFactor))) { slow++; }
+         if (entry.errorRate >= 0.5) { failing++; }
+      }
+      return("Peer health: peers=" + peers.size() + ", median RTT=" + (long)median + "us, slow=" + slow +
+             ", failing=" + failing);
+   }
+}
@@ -0,0 +1,247 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Peer send order check.
+ * Checks that asynchronous sends through the peer session pool reach a
+ * peer in the order they were made. A local endpoint records the messages
+ * it receives, and several threads each send it a lock request and then
+ * an unlock request per transaction id, without waiting for the sends, as
+ * a transaction quorum does. Each thread's messages must arrive in the
+ * order it sent them, so that no unlock arrives before its lock.
+ *
+ * Usage:
+ * java com.dialectek.coinspermia.node.PeerSendOrderCheck
+ *    [-port <endpoint port>] [-threads <sending threads>]
+ *    [-transactions <transactions per thread>]
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.DecodeException;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+
+import org.glassfish.tyrus.server.Server;
+
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageDecoder;
+import com.dialectek.coinspermia.shared.MessageEncoder;
+import com.dialectek.coinspermia.shared.Parameters;
+
+public class PeerSendOrderCheck
+{
+   // Options.
+   public static final String Options =
+      "Options:\n\t[-port <endpoint port> (defaults to 18950)]" +
+      "\n\t[-threads <sending threads> (defaults to 8)]" +
+      "\n\t[-transactions <transactions per thread> (defaults to 500)]";
+
+   // Received messages, in order, and the count still expected.
+   private static ArrayList<Message> received = new ArrayList<Message>();
+   private static CountDownLatch     expected;
+
+   // Recording endpoint.
+   @javax.websocket.server.ServerEndpoint(value = Parameters.URI, encoders = MessageEncoder.class, decoders = MessageDecoder.class )
+   public static class RecordingEndpoint
+   {
+      @OnOpen
+      public void onOpen(Session session)
+      {
+         String query = session.getQueryString();
+
+         if ((query != null) && query.contains(Parameters.BINARY_CODEC_QUERY))
+         {
+            MessageEncoder.setBinary(session);
+         }
+      }
+
+
+      @OnMessage
+      public void onMessage(ByteBuffer buffer, Session session) throws DecodeException
+      {
+         onMessage(MessageDecoder.Binary.fromByteBuffer(buffer), session);
+      }
+
+
+      @OnMessage
+      public void onMessage(Message message, Session session)
+      {
+         synchronized (received)
+         {
+            received.add(message);
+         }
+         expected.countDown();
+      }
+   }
+
+   // Endpoint port, sending threads and transactions per thread.
+   private int port;
+   private int threads;
+   private int transactions;
+
+   // Constructor.
+   public PeerSendOrderCheck(int port, int threads, int transactions)
+   {
+      this.port         = port;
+      this.threads      = threads;
+      this.transactions = transactions;
+   }
+
+
+   // Run: returns the results, and whether the check passed.
+   public boolean run(StringBuffer result) throws Exception
+   {
+      Server server = new Server("localhost", port, "/ws", RecordingEndpoint.class );
+
+      server.start();
+      try
+      {
+         return(check(result));
+      }
+      finally
+      {
+         server.stop();
+      }
+   }
+
+
+   // Send and check the order received.
+   private boolean check(StringBuffer result) throws Exception
+   {
+      final PeerSessionPool pool    = new PeerSessionPool();
+      final String          address = "localhost:" + port;
+
+      // Connect first, so that all sends go to one session, binary as
+      // between nodes once the peer has answered.
+      MessageEncoder.setBinary(pool.getSession(address));
+      expected = new CountDownLatch(threads * transactions * 2);
+      final UUID[][] ids = new UUID[threads][transactions];
+      for (int i = 0; i < threads; i++)
+      {
+         for (int j = 0; j < transactions; j++)
+         {
+            ids[i][j] = UUID.randomUUID();
+         }
+      }
+      final CountDownLatch done  = new CountDownLatch(threads);
+      long                 begin = System.nanoTime();
+      for (int i = 0; i < threads; i++)
+      {
+         final UUID[] threadIds = ids[i];
+         Thread       thread    = new Thread(() ->
+                                             {
+                                                for (UUID id : threadIds)
+                                                {
+                                                   pool.sendAsync(address, newRequest(Message.LOCK_REQUEST, id),
+                                                                  "Cannot send lock request");
+                                                   pool.sendAsync(address, newRequest(Message.UNLOCK_REQUEST, id),
+                                                                  "Cannot send unlock request");
+                                                }
+                                                done.countDown();
+                                             });
+         thread.start();
+      }
+      done.await();
+      boolean complete = expected.await(30, TimeUnit.SECONDS);
+      long    elapsed  = System.nanoTime() - begin;
+      pool.close(address);
+      pool.executor.shutdown();
+
+      // Each thread's messages must arrive in the order sent.
+      HashMap<UUID, Integer> threadOf = new HashMap<UUID, Integer>();
+      for (int i = 0; i < threads; i++)
+      {
+         for (UUID id : ids[i])
+         {
+            threadOf.put(id, i);
+         }
+      }
+      int[] next       = new int[threads];
+      int   outOfOrder = 0;
+      synchronized (received)
+      {
+         for (Message message : received)
+         {
+            Integer thread = threadOf.get(message.id);
+            if (thread == null)
+            {
+               outOfOrder++;
+               continue;
+            }
+            int  sent = next[thread]++;
+            int  type = ((sent % 2) == 0) ? Message.LOCK_REQUEST : Message.UNLOCK_REQUEST;
+            UUID id   = ids[thread][sent / 2];
+            if ((message.type != type) || !message.id.equals(id))
+            {
+               outOfOrder++;
+            }
+         }
+         result.append(received.size() + " of " + (threads * transactions * 2) + " messages received in " +
+                       (elapsed / 1000000) + " ms, " + outOfOrder + " out of order");
+      }
+      boolean passed = complete && (outOfOrder == 0);
+      result.append(passed ? "\n\tpassed" : "\n\tFAILED");
+      return(passed);
+   }
+
+
+   // New request for transaction id.
+   private static Message newRequest(int type, UUID id)
+   {
+      Message message = new Message(type);
+
+      message.sender = "localhost";
+      message.id     = id;
+      return(message);
+   }
+
+
+   // Main.
+   public static void main(String[] args) throws Exception
+   {
+      int port         = 18950;
+      int threads      = 8;
+      int transactions = 500;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-port"))
+         {
+            i++;
+            port = Integer.parseInt(args[i]);
+         }
+         else if (args[i].equals("-threads"))
+         {
+            i++;
+            threads = Integer.parseInt(args[i]);
+         }
+         else if (args[i].equals("-transactions"))
+         {
+            i++;
+            transactions = Integer.parseInt(args[i]);
+         }
+         else
+         {
+            System.err.println(Options);
+            System.exit(1);
+         }
+      }
+      if ((threads < 1) || (transactions < 1))
+      {
+         System.err.println(Options);
+         System.exit(1);
+      }
+      StringBuffer result = new StringBuffer();
+      boolean      passed = new PeerSendOrderCheck(port, threads, transactions).run(result);
+      System.out.println(result);
+      System.exit(passed ? 0 : 1);
+   }
+}
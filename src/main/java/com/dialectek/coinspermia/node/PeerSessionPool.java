@@ -0,0 +1,331 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Peer session pool.
+ * Long-lived sessions to peer nodes, keyed by peer address.
+ * All node-to-node messages are sent through the pool, which
+ * multiplexes them over a single session per peer. Asynchronous sends to
+ * a peer are chained one after another, so that they arrive in the order
+ * they were made, e.g. a lock before its unlock.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import javax.websocket.CloseReason.CloseCodes;
+
+import org.glassfish.tyrus.client.ClientManager;
+
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageEncoder;
+import com.dialectek.coinspermia.shared.Parameters;
+
+public class PeerSessionPool
+{
+   // Pooled peer session.
+   public class PeerSession
+   {
+      public String  address;
+      public Session session;
+      public long    lastUsed;
+      public int     failures;
+      public long    retryTime;
+
+      // Last asynchronous send, which the next one follows.
+      public AtomicReference<CompletableFuture<Void>> lastSend;
+
+      public PeerSession(String address)
+      {
+         this.address = address;
+         session      = null;
+         lastUsed     = 0;
+         failures     = 0;
+         retryTime    = 0;
+         lastSend     = new AtomicReference<CompletableFuture<Void>>(CompletableFuture.completedFuture(null));
+      }
+   }
+   private HashMap<String, PeerSession> peerSessions;
+
+   // Reconnect to a peer deferred: the peer is backing off after a failed
+   // connect, not newly failed.
+   public static class DeferredException extends Exception
+   {
+      private static final long serialVersionUID = 1L;
+
+      public DeferredException(String message)
+      {
+         super(message);
+      }
+   }
+
+   // Client manager.
+   private ClientManager client;
+
+   // Peer I/O executor.
+   public ExecutorService executor;
+
+   // Metrics.
+   public AtomicLong hits;
+   public AtomicLong misses;
+   public AtomicLong connectFailures;
+   public AtomicLong handshakes;
+   public AtomicLong handshakeTime;
+   public AtomicLong evictions;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(PeerSessionPool.class .getName());
+
+   // Constructor.
+   public PeerSessionPool()
+   {
+      peerSessions    = new HashMap<String, PeerSession>();
+      client          = ClientManager.createClient();
+      executor        = Executors.newFixedThreadPool(Parameters.PEER_IO_THREADS,
+                                                     new ThreadFactory()
+                                                     {
+                                                        public Thread newThread(Runnable runnable)
+                                                        {
+                                                           Thread thread = new Thread(runnable, "peer-io");
+                                                           thread.setDaemon(true);
+                                                           return(thread);
+                                                        }
+                                                     });
+      hits            = new AtomicLong();
+      misses          = new AtomicLong();
+      connectFailures = new AtomicLong();
+      handshakes      = new AtomicLong();
+      handshakeTime   = new AtomicLong();
+      evictions       = new AtomicLong();
+   }
+
+
+   // Get pooled session to peer, creating it if necessary.
+   private PeerSession getPeerSession(String address)
+   {
+      synchronized (peerSessions)
+      {
+         PeerSession peerSession = peerSessions.get(address);
+         if (peerSession == null)
+         {
+            peerSession = new PeerSession(address);
+            peerSessions.put(address, peerSession);
+         }
+         return(peerSession);
+      }
+   }
+
+
+   // Get open session to peer, connecting if necessary.
+   public Session getSession(String address) throws Exception
+   {
+      PeerSession peerSession = getPeerSession(address);
+
+      // Connects to the same peer are serialized.
+      synchronized (peerSession)
+      {
+         long now = System.currentTimeMillis();
+         if ((peerSession.session != null) && peerSession.session.isOpen())
+         {
+            hits.incrementAndGet();
+            peerSession.lastUsed = now;
+            return(peerSession.session);
+         }
+         misses.incrementAndGet();
+         peerSession.session = null;
+         if (now < peerSession.retryTime)
+         {
+            throw new DeferredException("Reconnect to peer " + address + " deferred");
+         }
+         long start = System.nanoTime();
+         try
+         {
+            peerSession.session = client.connectToServer(ClientEndpoint.class,
+                                                         new URI(Parameters.WEBSOCKET_PROTOCOL + "://" + address + "/ws" + Parameters.URI +
+                                                                 "?" + Parameters.BINARY_CODEC_QUERY));
+         }
+         catch (Exception e)
+         {
+            // Back off exponentially before the next attempt.
+            connectFailures.incrementAndGet();
+            long wait = (long)Parameters.PEER_RECONNECT_MIN_WAIT << Math.min(peerSession.failures, 16);
+            if (wait > Parameters.PEER_RECONNECT_MAX_WAIT)
+            {
+               wait = Parameters.PEER_RECONNECT_MAX_WAIT;
+            }
+            peerSession.failures++;
+            peerSession.retryTime = now + wait;
+            throw e;
+         }
+         handshakes.incrementAndGet();
+         handshakeTime.addAndGet(System.nanoTime() - start);
+         peerSession.failures  = 0;
+         peerSession.retryTime = 0;
+         peerSession.lastUsed  = System.currentTimeMillis();
+         return(peerSession.session);
+      }
+   }
+
+
+   // Send message to peer.
+   public void send(String address, Message message) throws Exception
+   {
+      Session session = getSession(address);
+
+      try
+      {
+         MessageEncoder.send(session, message);
+      }
+      catch (Exception e)
+      {
+         close(address);
+         throw e;
+      }
+   }
+
+
+   // Send message to peer on the peer I/O executor, after the previous
+   // asynchronous send to the peer, whether or not it failed.
+   public CompletableFuture<Void> sendAsync(final String address, final Message message)
+   {
+      CompletableFuture<Void> sent = new CompletableFuture<Void>();
+
+      getPeerSession(address).lastSend.getAndSet(sent).whenCompleteAsync((result, failure) ->
+                                                                         {
+                                                                            try
+                                                                            {
+                                                                               send(address, message);
+                                                                               sent.complete(null);
+                                                                            }
+                                                                            catch (Exception e)
+                                                                            {
+                                                                               if (Node.node != null) { Node.node.peerHealth.failure(address); }
+                                                                               sent.completeExceptionally(e);
+                                                                            }
+                                                                         }, executor);
+      return(sent);
+   }
+
+
+   // Send message to peer asynchronously, logging failure.
+   public CompletableFuture<Void> sendAsync(String address, Message message, final String failure)
+   {
+      return(sendAsync(address, message).exceptionally(e ->
+                                                       {
+                                                          Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                                                          logger.severe(failure + ": " + cause.getMessage());
+                                                          return(null);
+                                                       }));
+   }
+
+
+   // Close session to peer.
+   public void close(String address)
+   {
+      PeerSession peerSession;
+
+      synchronized (peerSessions)
+      {
+         peerSession = peerSessions.get(address);
+      }
+      if (peerSession != null)
+      {
+         synchronized (peerSession)
+         {
+            closeSession(peerSession);
+         }
+      }
+   }
+
+
+   // Check session health and evict idle sessions.
+   public void maintain()
+   {
+      ArrayList<PeerSession> sessions = new ArrayList<PeerSession>();
+
+      synchronized (peerSessions)
+      {
+         sessions.addAll(peerSessions.values());
+      }
+      long now = System.currentTimeMillis();
+      for (PeerSession peerSession : sessions)
+      {
+         synchronized (peerSession)
+         {
+            if (peerSession.session == null)
+            {
+               // Forget peers that have been unreachable for a while,
+               // once their sends are done.
+               if ((peerSession.retryTime != 0) &&
+                   ((now - peerSession.retryTime) >= Parameters.PEER_SESSION_IDLE_TIME_OUT) &&
+                   peerSession.lastSend.get().isDone())
+               {
+                  synchronized (peerSessions)
+                  {
+                     peerSessions.remove(peerSession.address);
+                  }
+               }
+               continue;
+            }
+            if ((now - peerSession.lastUsed) >= Parameters.PEER_SESSION_IDLE_TIME_OUT)
+            {
+               evictions.incrementAndGet();
+               closeSession(peerSession);
+               continue;
+            }
+            try
+            {
+               synchronized (peerSession.session)
+               {
+                  peerSession.session.getBasicRemote().sendPing(ByteBuffer.allocate(0));
+               }
+            }
+            catch (Exception e)
+            {
+               logger.warning("Peer session health check failed, peer " + peerSession.address + ": " + e.getMessage());
+               closeSession(peerSession);
+            }
+         }
+      }
+   }
+
+
+   // Close pooled session.
+   private void closeSession(PeerSession peerSession)
+   {
+      if (peerSession.session != null)
+      {
+         try
+         {
+            peerSession.session.close(new CloseReason(CloseCodes.NORMAL_CLOSURE, "Session close"));
+         }
+         catch (Exception e) {}
+         peerSession.session = null;
+      }
+   }
+
+
+   // Metrics.
+   public String stats()
+   {
+      long n = handshakes.get();
+      long t = 0;
+
+      if (n > 0) { t = handshakeTime.get() / n / 1000000; }
+      return("Peer session pool: hits=" + hits.get() + ", misses=" + misses.get() +
+             ", handshakes=" + n + ", mean handshake time=" + t + "ms" +
+             ", connect failures=" + connectFailures.get() + ", evictions=" + evictions.get());
+   }
+}
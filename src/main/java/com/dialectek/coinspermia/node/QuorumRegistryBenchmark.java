@@ -0,0 +1,184 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Quorum registry benchmark.
+ * Measures concurrent transaction quorum starts per second, and the delay
+ * lock responses see looking up their quorum, for the synchronized map
+ * locked across quorum start-up and for the concurrent registry. Start-up
+ * is simulated by a wait standing in for validation, ledger locking and
+ * peer connects.
+ *
+ * Usage:
+ * java com.dialectek.coinspermia.node.QuorumRegistryBenchmark
+ *    [-threads <starting threads>] [-starts <starts per thread>]
+ *    [-startTime <start-up time (ms)>]
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.dialectek.coinspermia.shared.Histogram;
+
+public class QuorumRegistryBenchmark
+{
+   // Options.
+   public static final String Options =
+      "Options:\n\t[-threads <starting threads> (defaults to 16)]" +
+      "\n\t[-starts <starts per thread> (defaults to 100)]" +
+      "\n\t[-startTime <simulated start-up time in ms> (defaults to 2)]";
+
+   // Starting threads, starts per thread and start-up time.
+   private int threads;
+   private int starts;
+   private int startTime;
+
+   // Constructor.
+   public QuorumRegistryBenchmark(int threads, int starts, int startTime)
+   {
+      this.threads   = threads;
+      this.starts    = starts;
+      this.startTime = startTime;
+   }
+
+
+   // Run with synchronized map: start-up under the map lock, as before.
+   public String runSynchronized() throws InterruptedException
+   {
+      final Map<UUID, Object> registry = Collections.synchronizedMap(new HashMap<UUID, Object>());
+
+      return(run("synchronized map", registry, (id, quorum) ->
+                 {
+                    synchronized (registry)
+                    {
+                       if (!registry.containsKey(id))
+                       {
+                          registry.put(id, quorum);
+                          startUp();
+                       }
+                    }
+                 }));
+   }
+
+
+   // Run with concurrent registry: start-up outside any lock.
+   public String runConcurrent() throws InterruptedException
+   {
+      final ConcurrentHashMap<UUID, Object> registry = new ConcurrentHashMap<UUID, Object>();
+
+      return(run("concurrent registry", registry, (id, quorum) ->
+                 {
+                    if (registry.putIfAbsent(id, quorum) == null)
+                    {
+                       startUp();
+                    }
+                 }));
+   }
+
+
+   // Quorum start.
+   private interface Start
+   {
+      void start(UUID id, Object quorum);
+   }
+
+
+   // Run starting threads, with a lock response thread looking up quorums.
+   private String run(String name, final Map<UUID, Object> registry, final Start start) throws InterruptedException
+   {
+      final CountDownLatch done     = new CountDownLatch(threads);
+      final AtomicBoolean  finished = new AtomicBoolean(false);
+      final Histogram      lookups  = new Histogram("lock response lookup", "us");
+
+      long begin = System.nanoTime();
+
+      for (int i = 0; i < threads; i++)
+      {
+         Thread thread = new Thread(() ->
+                                    {
+                                       for (int j = 0; j < starts; j++)
+                                       {
+                                          UUID id = UUID.randomUUID();
+                                          start.start(id, new Object());
+                                          registry.remove(id);
+                                       }
+                                       done.countDown();
+                                    });
+         thread.start();
+      }
+      Thread responder = new Thread(() ->
+                                    {
+                                       UUID id = UUID.randomUUID();
+                                       while (!finished.get())
+                                       {
+                                          long t = System.nanoTime();
+                                          registry.get(id);
+                                          lookups.record((System.nanoTime() - t) / 1000);
+                                          try
+                                          {
+                                             Thread.sleep(1);
+                                          }
+                                          catch (InterruptedException e) {}
+                                       }
+                                    });
+      responder.start();
+      done.await();
+      long elapsed = System.nanoTime() - begin;
+      finished.set(true);
+      responder.join();
+      return(name + ": " + (long)(((double)threads * starts * 1e9) / elapsed) + " starts/s\n\t" + lookups);
+   }
+
+
+   // Simulated quorum start-up.
+   private void startUp()
+   {
+      try
+      {
+         Thread.sleep(startTime);
+      }
+      catch (InterruptedException e) {}
+   }
+
+
+   // Main.
+   public static void main(String[] args) throws Exception
+   {
+      int threads   = 16;
+      int starts    = 100;
+      int startTime = 2;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-threads"))
+         {
+            i++;
+            threads = Integer.parseInt(args[i]);
+         }
+         else if (args[i].equals("-starts"))
+         {
+            i++;
+            starts = Integer.parseInt(args[i]);
+         }
+         else if (args[i].equals("-startTime"))
+         {
+            i++;
+            startTime = Integer.parseInt(args[i]);
+         }
+         else
+         {
+            System.err.println(Options);
+            System.exit(1);
+         }
+      }
+      QuorumRegistryBenchmark benchmark = new QuorumRegistryBenchmark(threads, starts, startTime);
+      System.out.println(benchmark.runSynchronized());
+      System.out.println(benchmark.runConcurrent());
+   }
+}
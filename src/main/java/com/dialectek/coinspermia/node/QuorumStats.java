@@ -0,0 +1,77 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Transaction quorum latency statistics.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dialectek.coinspermia.shared.Histogram;
+
+public class QuorumStats
+{
+   // Per phase latencies (microseconds).
+   // Lock send: lock round start to all lock requests sent.
+   // Last vote: lock round start to last member vote received.
+   // Commit: commit, propagation and client response.
+   // Total: quorum start to commit.
+   public Histogram lockSend;
+   public Histogram lastVote;
+   public Histogram commit;
+   public Histogram total;
+
+   // Outcomes.
+   public AtomicLong commits;
+   public AtomicLong aborts;
+   public AtomicLong retries;
+
+   // Lock requests sent by id only, and full resends after member misses.
+   public AtomicLong referenceSends;
+   public AtomicLong resends;
+
+   // Lock rounds and hedging.
+   // Member vote: lock round start to a member's vote.
+   // Hedge saving: a hedge filling a slot to the member it stood in for
+   // voting, or, if it had not, to the count of the votes.
+   public AtomicLong rounds;
+   public AtomicLong hedges;
+   public AtomicLong hedgeWins;
+   public Histogram  memberVote;
+   public Histogram  hedgeSaving;
+
+   // Constructor.
+   public QuorumStats()
+   {
+      lockSend       = new Histogram("lock send", "us");
+      lastVote       = new Histogram("last vote", "us");
+      commit         = new Histogram("commit", "us");
+      total          = new Histogram("total", "us");
+      commits        = new AtomicLong();
+      aborts         = new AtomicLong();
+      retries        = new AtomicLong();
+      referenceSends = new AtomicLong();
+      resends        = new AtomicLong();
+      rounds         = new AtomicLong();
+      hedges         = new AtomicLong();
+      hedgeWins      = new AtomicLong();
+      memberVote     = new Histogram("member vote", "us");
+      hedgeSaving    = new Histogram("hedge saving", "us");
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      long r = rounds.get();
+      long h = hedges.get();
+
+      return("Transaction quorums: commits=" + commits.get() + ", aborts=" + aborts.get() +
+             ", retries=" + retries.get() + ", reference sends=" + referenceSends.get() +
+             ", resends=" + resends.get() + ", lock rounds=" + r + ", hedges=" + h +
+             ", hedge rate=" + (r > 0 ? (float)h / (float)r : 0.0f) + ", hedge wins=" + hedgeWins.get() +
+             "\n\t" + lockSend + "\n\t" + lastVote + "\n\t" + memberVote + "\n\t" + hedgeSaving +
+             "\n\t" + commit + "\n\t" + total);
+   }
+}
@@ -0,0 +1,135 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Client rate limiter.
+ * Client requests are admitted through a token bucket per session, and
+ * transactions also through a bucket per input public key hash, so a
+ * client cannot get around its limit by opening more sessions to spend
+ * from the same keys. Key buckets are charged only once the inputs'
+ * signatures verify, so only a key's owner can use up its bucket. A request
+ * refused after it was admitted gets its tokens back. Buckets left full
+ * are discarded.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.Session;
+
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class RateLimiter
+{
+   // Buckets by session id and by input public key hash.
+   private ConcurrentHashMap<String, TokenBucket>  sessionBuckets;
+   private ConcurrentHashMap<Integer, TokenBucket> keyBuckets;
+
+   // Session and key rates (requests/s) and bursts.
+   public double sessionRate, sessionBurst;
+   public double keyRate, keyBurst;
+
+   // Metrics.
+   public AtomicLong sessionThrottles;
+   public AtomicLong keyThrottles;
+
+   // Constructor.
+   public RateLimiter(double sessionRate, double sessionBurst, double keyRate, double keyBurst)
+   {
+      this.sessionRate  = sessionRate;
+      this.sessionBurst = sessionBurst;
+      this.keyRate      = keyRate;
+      this.keyBurst     = keyBurst;
+      sessionBuckets    = new ConcurrentHashMap<String, TokenBucket>();
+      keyBuckets        = new ConcurrentHashMap<Integer, TokenBucket>();
+      sessionThrottles  = new AtomicLong();
+      keyThrottles      = new AtomicLong();
+   }
+
+
+   // Admit client request through its session bucket?
+   public boolean admit(Message message, Session session)
+   {
+      TokenBucket bucket = sessionBuckets.computeIfAbsent(session.getId(),
+                                                          id -> new TokenBucket(sessionRate, sessionBurst));
+
+      if (!bucket.take())
+      {
+         sessionThrottles.incrementAndGet();
+         return(false);
+      }
+      return(true);
+   }
+
+
+   // Return the session token of a request admitted and then refused.
+   public void refund(Session session)
+   {
+      TokenBucket bucket = sessionBuckets.get(session.getId());
+
+      if (bucket != null) { bucket.refund(); }
+   }
+
+
+   // Admit transaction through the buckets of its input keys? Tokens are
+   // taken from all of them or none. The caller has verified the inputs.
+   public boolean admitKeys(Transaction transaction)
+   {
+      if ((transaction.type != Transaction.PAYMENT) || (transaction.inputs == null)) { return(true); }
+      ArrayList<TokenBucket> taken = new ArrayList<TokenBucket>();
+      for (Transaction.Input input : transaction.inputs)
+      {
+         TokenBucket bucket = keyBuckets.computeIfAbsent(input.publicKeyHash,
+                                                         hash -> new TokenBucket(keyRate, keyBurst));
+         if (!bucket.take())
+         {
+            keyThrottles.incrementAndGet();
+            for (TokenBucket refunded : taken)
+            {
+               refunded.refund();
+            }
+            return(false);
+         }
+         taken.add(bucket);
+      }
+      return(true);
+   }
+
+
+   // Discard buckets of closed session and buckets that have refilled.
+   public void prune(Session closed)
+   {
+      if (closed != null)
+      {
+         sessionBuckets.remove(closed.getId());
+      }
+      sessionBuckets.values().removeIf(TokenBucket::full);
+      keyBuckets.values().removeIf(TokenBucket::full);
+   }
+
+
+   // Statistics, with the most throttled sessions.
+   public String stats()
+   {
+      ArrayList<Map.Entry<String, TokenBucket> > top = new ArrayList<Map.Entry<String, TokenBucket> >();
+      for (Map.Entry<String, TokenBucket> entry : sessionBuckets.entrySet())
+      {
+         if (entry.getValue().throttled > 0) { top.add(entry); }
+      }
+      top.sort((a, b) -> Long.compare(b.getValue().throttled, a.getValue().throttled));
+      String s = "Rate limits: session=" + sessionRate + "/s (burst " + sessionBurst + "), key=" + keyRate +
+                 "/s (burst " + keyBurst + "), session throttles=" + sessionThrottles.get() +
+                 ", key throttles=" + keyThrottles.get() + ", sessions=" + sessionBuckets.size() +
+                 ", keys=" + keyBuckets.size();
+      for (int i = 0; i < top.size() && i < 5; i++)
+      {
+         TokenBucket bucket = top.get(i).getValue();
+         s += "\n\tsession id=" + top.get(i).getKey() + ": admitted=" + bucket.admitted + ", throttled=" + bucket.throttled;
+      }
+      return(s);
+   }
+}
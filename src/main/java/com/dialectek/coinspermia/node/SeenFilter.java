@@ -0,0 +1,121 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Seen transaction filter.
+ * Rotating pair of Bloom filters over transaction ids: ids are added to
+ * the current filter, and when it reaches capacity it becomes the previous
+ * filter and a cleared one takes its place. Memory is bounded, ids are
+ * remembered for at least one generation, and a false positive (an unseen
+ * id reported as seen) occurs with at most twice the configured rate.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+public class SeenFilter
+{
+   // Current and previous generations.
+   private long[] current;
+   private long[] previous;
+
+   // Bits, hash functions and ids per generation.
+   private int bits;
+   private int hashes;
+   private int capacity;
+   private int count;
+
+   // Constructor.
+   public SeenFilter(int capacity, double falsePositiveRate)
+   {
+      double ln2 = Math.log(2.0);
+
+      this.capacity = capacity;
+      long n = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+      n        = ((n + 63) / 64) * 64;
+      bits     = (int)Math.min(n, Integer.MAX_VALUE - 63);
+      hashes   = Math.max(1, (int)Math.round(((double)bits / capacity) * ln2));
+      current  = new long[bits / 64];
+      previous = new long[bits / 64];
+      count    = 0;
+   }
+
+
+   // Add id: returns true if it had not been seen.
+   public synchronized boolean add(UUID id)
+   {
+      long h1 = mix(id.getMostSignificantBits());
+      long h2 = mix(id.getLeastSignificantBits()) | 1L;
+
+      if (contains(current, h1, h2)) { return(false); }
+      if (contains(previous, h1, h2))
+      {
+         set(current, h1, h2);
+         return(false);
+      }
+      if (count == capacity)
+      {
+         long[] cleared = previous;
+         Arrays.fill(cleared, 0L);
+         previous = current;
+         current  = cleared;
+         count    = 0;
+      }
+      set(current, h1, h2);
+      count++;
+      return(true);
+   }
+
+
+   // Id probably seen?
+   public synchronized boolean contains(UUID id)
+   {
+      long h1 = mix(id.getMostSignificantBits());
+      long h2 = mix(id.getLeastSignificantBits()) | 1L;
+
+      return(contains(current, h1, h2) || contains(previous, h1, h2));
+   }
+
+
+   // Filter contains all hash bits?
+   private boolean contains(long[] filter, long h1, long h2)
+   {
+      for (int i = 0; i < hashes; i++)
+      {
+         int bit = (int)Long.remainderUnsigned(h1 + (i * h2), bits);
+         if ((filter[bit >>> 6] & (1L << bit)) == 0) { return(false); }
+      }
+      return(true);
+   }
+
+
+   // Set hash bits.
+   private void set(long[] filter, long h1, long h2)
+   {
+      for (int i = 0; i < hashes; i++)
+      {
+         int bit = (int)Long.remainderUnsigned(h1 + (i * h2), bits);
+         filter[bit >>> 6] |= (1L << bit);
+      }
+   }
+
+
+   // Mix bits (MurmurHash3 finalizer).
+   private static long mix(long h)
+   {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return(h);
+   }
+
+
+   // Memory used by filters (bytes).
+   public long memory()
+   {
+      return((long)bits / 4);
+   }
+}
@@ -0,0 +1,122 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Verified signature cache.
+ * Bounded LRU set of (public key hash, signature) pairs that have verified
+ * against a public key, so retried and repeated lock requests for the
+ * same transaction skip RSA verification.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dialectek.coinspermia.shared.Utils;
+
+public class SignatureCache
+{
+   // Cache key.
+   private static class Entry
+   {
+      int    publicKeyHash;
+      byte[] signature;
+      int    hashCode;
+
+      Entry(int publicKeyHash, byte[] signature)
+      {
+         this.publicKeyHash = publicKeyHash;
+         this.signature     = signature;
+         hashCode           = (31 * publicKeyHash) + Arrays.hashCode(signature);
+      }
+
+
+      public int hashCode()
+      {
+         return(hashCode);
+      }
+
+
+      public boolean equals(Object object)
+      {
+         if (!(object instanceof Entry)) { return(false); }
+         Entry entry = (Entry)object;
+         return((entry.publicKeyHash == publicKeyHash) && Arrays.equals(entry.signature, signature));
+      }
+   }
+
+   // Verified entries and the key each verified against.
+   private LinkedHashMap<Entry, PublicKey> cache;
+
+   // Metrics.
+   public AtomicLong hits;
+   public AtomicLong misses;
+
+   // Constructor.
+   public SignatureCache(final int capacity)
+   {
+      cache = new LinkedHashMap<Entry, PublicKey>(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry<Entry, PublicKey> eldest)
+         {
+            return(size() > capacity);
+         }
+      };
+      hits   = new AtomicLong();
+      misses = new AtomicLong();
+   }
+
+
+   // Verify public key hash signature, consulting the cache.
+   public boolean verify(PublicKey publicKey, int publicKeyHash, byte[] signature)
+   {
+      if (signature == null) { return(false); }
+      Entry entry = new Entry(publicKeyHash, signature);
+      synchronized (cache)
+      {
+         PublicKey verifiedKey = cache.get(entry);
+         if ((verifiedKey != null) && verifiedKey.equals(publicKey))
+         {
+            hits.incrementAndGet();
+            return(true);
+         }
+      }
+      misses.incrementAndGet();
+      if (!Utils.verifySignature(publicKey, Utils.intToBytes(publicKeyHash), signature))
+      {
+         return(false);
+      }
+      synchronized (cache)
+      {
+         cache.put(entry, publicKey);
+      }
+      return(true);
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      synchronized (cache)
+      {
+         cache.clear();
+      }
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      long h = hits.get();
+      long m = misses.get();
+      long r = 0;
+
+      if ((h + m) > 0) { r = (h * 100) / (h + m); }
+      return("Signature cache: hits=" + h + ", misses=" + m + ", hit rate=" + r + "%");
+   }
+}
@@ -0,0 +1,275 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Ledger snapshot transfer.
+ * A node joining with an empty ledger asks a peer for a snapshot. The peer
+ * captures a consistent copy of its UTXOs and streams it in chunks; the
+ * node builds a staging ledger from them, merges it into its own, and then
+ * applies the commits it received during the transfer. Anti-entropy picks
+ * up any commit the snapshot and tail both missed. Snapshots are served
+ * by a bounded pool, one at a time to a peer.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.websocket.Session;
+
+import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageEncoder;
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class SnapshotTransfer implements Runnable
+{
+   // Transfer in progress, and whether a snapshot has been installed.
+   public volatile boolean active;
+   public boolean          installed;
+
+   // Transfer state.
+   private UUID                     id;
+   private String                   peer;
+   private Ledger                   staging;
+   private ArrayList<Transaction>   tail;
+   private long                     startTime;
+   private TimeoutScheduler.Timeout timer;
+
+   // Snapshot requests being served, by peer, and serving pool.
+   private ConcurrentHashMap<String, UUID> serving;
+   private ThreadPoolExecutor              servers;
+
+   // Metrics.
+   public AtomicLong served;
+   public AtomicLong chunksServed;
+   public AtomicLong refused;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(SnapshotTransfer.class .getName());
+
+   // Constructor.
+   public SnapshotTransfer()
+   {
+      active       = false;
+      installed    = false;
+      serving      = new ConcurrentHashMap<String, UUID>();
+      servers      = new ThreadPoolExecutor(Parameters.SNAPSHOT_SERVE_THREADS, Parameters.SNAPSHOT_SERVE_THREADS,
+                                            0L, TimeUnit.MILLISECONDS,
+                                            new ArrayBlockingQueue<Runnable>(Parameters.SNAPSHOT_SERVE_QUEUE_CAPACITY),
+                                            runnable ->
+                                            {
+                                               Thread thread = new Thread(runnable, "snapshot-transfer");
+                                               thread.setDaemon(true);
+                                               return(thread);
+                                            });
+      served       = new AtomicLong();
+      chunksServed = new AtomicLong();
+      refused      = new AtomicLong();
+   }
+
+
+   // Request snapshot from peer, if the ledger is empty and no transfer
+   // has been made.
+   public synchronized void start(String peer)
+   {
+      if (active || installed || (Node.node.ledger.utxos.size() > 0)) { return; }
+      active    = true;
+      id        = UUID.randomUUID();
+      this.peer = peer;
+      staging   = new Ledger();
+      tail      = new ArrayList<Transaction>();
+      startTime = System.currentTimeMillis();
+      timer     = Node.node.timeouts.schedule(this, Parameters.SNAPSHOT_TRANSFER_TIME_OUT);
+      Message message = new Message(Message.SNAPSHOT_REQUEST);
+      message.sender   = Node.node.address;
+      message.password = Node.node.password;
+      message.id       = id;
+      logger.info("Requesting ledger snapshot from peer " + peer);
+      Node.node.peerSessions.sendAsync(peer, message, "Cannot send snapshot request to peer " + peer);
+   }
+
+
+   // Serve snapshot to peer.
+   // A serving thread captures the UTXOs under the ledger locks and streams
+   // them, so the session keeps handling other messages. A request from a
+   // peer already being served, or that the pool has no room for, is
+   // refused with a BUSY response.
+   public void serve(final Message request, final Session session)
+   {
+      final String peer = request.sender;
+
+      if ((peer == null) || (serving.putIfAbsent(peer, request.id) != null))
+      {
+         refuse(request.id, session);
+         return;
+      }
+      try
+      {
+         servers.execute(() ->
+                         {
+                            try
+                            {
+                               stream(Node.node.ledger.snapshot(), request.id, session);
+                            }
+                            finally
+                            {
+                               serving.remove(peer, request.id);
+                            }
+                         });
+      }
+      catch (RejectedExecutionException e)
+      {
+         serving.remove(peer, request.id);
+         refuse(request.id, session);
+      }
+   }
+
+
+   // Stream snapshot chunks, ending with an empty response.
+   private void stream(LedgerSnapshot snapshot, UUID id, Session session)
+   {
+      served.incrementAndGet();
+      try
+      {
+         for (int i = 0; i < snapshot.size; i += Parameters.SNAPSHOT_CHUNK_SIZE)
+         {
+            Message message = newResponse(id);
+            message.transaction = snapshot.chunk(i, Math.min(snapshot.size, i + Parameters.SNAPSHOT_CHUNK_SIZE));
+            MessageEncoder.send(session, message);
+            chunksServed.incrementAndGet();
+         }
+         MessageEncoder.send(session, newResponse(id));
+      }
+      catch (Exception e)
+      {
+         logger.severe("Cannot send snapshot, session id=" + session.getId() + ": " + e.getMessage());
+      }
+   }
+
+
+   // Refuse snapshot request.
+   private void refuse(UUID id, Session session)
+   {
+      Message message = newResponse(id);
+
+      refused.incrementAndGet();
+      message.result = Parameters.BUSY;
+      try
+      {
+         MessageEncoder.send(session, message);
+      }
+      catch (Exception e)
+      {
+         logger.warning("Cannot refuse snapshot request, session id=" + session.getId() + ": " + e.getMessage());
+      }
+   }
+
+
+   // New snapshot response.
+   private static Message newResponse(UUID id)
+   {
+      Message message = new Message(Message.SNAPSHOT_RESPONSE);
+
+      message.sender   = Node.node.address;
+      message.password = Node.node.password;
+      message.id       = id;
+      return(message);
+   }
+
+
+   // Snapshot response: a chunk, or the end of the snapshot.
+   public synchronized void response(Message message)
+   {
+      if (!active || !id.equals(message.id)) { return; }
+      if (message.result != Parameters.SUCCESS)
+      {
+         logger.warning("Snapshot transfer from peer " + peer + " failed, result=" + message.result);
+         finish(false);
+         return;
+      }
+      if (message.transaction != null)
+      {
+         for (Transaction.Output output : message.transaction.outputs)
+         {
+            if (output.publicKey != null)
+            {
+               staging.utxos.put(output.publicKeyHash, staging.newUTXO(output));
+            }
+         }
+         return;
+      }
+      finish(true);
+   }
+
+
+   // Buffer commits received during a transfer, to apply after it.
+   // Returns false if no transfer is in progress.
+   public synchronized boolean buffer(ArrayList<Transaction> batch)
+   {
+      if (!active) { return(false); }
+      tail.addAll(batch);
+      return(true);
+   }
+
+
+   // Transfer timed out.
+   public synchronized void run()
+   {
+      if (!active) { return; }
+      logger.warning("Snapshot transfer from peer " + peer + " timed out");
+      finish(false);
+   }
+
+
+   // Finish transfer: merge the snapshot in if complete, then apply the
+   // buffered commits, repeating while commits waiting on others apply.
+   private void finish(boolean complete)
+   {
+      active = false;
+      timer.cancel();
+      if (complete)
+      {
+         Node.node.ledger.install(staging, Parameters.LEDGER_FILE);
+         installed = true;
+         logger.info("Installed ledger snapshot from peer " + peer + ": " + staging.utxos.size() + " UTXOs in " +
+                     (System.currentTimeMillis() - startTime) + "ms, " + tail.size() + " commits to apply");
+      }
+      ArrayList<Transaction> pending = tail;
+      while (!pending.isEmpty())
+      {
+         int[]                  results = Node.node.ledger.commitBatch(pending);
+         ArrayList<Transaction> failed  = new ArrayList<Transaction>();
+         for (int i = 0; i < results.length; i++)
+         {
+            if ((results[i] == Parameters.SUCCESS) || (results[i] == Parameters.DUPLICATE))
+            {
+               Node.node.gossip.seen.add(pending.get(i).id);
+            }
+            else
+            {
+               failed.add(pending.get(i));
+            }
+         }
+         if (failed.size() == pending.size()) { break; }
+         pending = failed;
+      }
+      staging = null;
+      tail    = null;
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      return("Snapshot transfers: installed=" + installed + ", served=" + served.get() + ", chunks served=" + chunksServed.get() +
+             ", refused=" + refused.get());
+   }
+}
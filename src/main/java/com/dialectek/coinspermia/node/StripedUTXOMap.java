@@ -0,0 +1,283 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Striped UTXO map.
+ * UTXOs are partitioned by public key hash into stripes, each an
+ * open-addressing map guarded by its own lock, so transactions touching
+ * disjoint UTXOs can proceed in parallel. Multi-key operations lock the
+ * stripes they touch in ascending order to avoid deadlock.
+ * The map can keep a Merkle tree of its UTXOs up to date for anti-entropy.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StripedUTXOMap implements UTXOMap
+{
+   // Stripes.
+   private IntUTXOMap[]    maps;
+   private ReentrantLock[] locks;
+   private int             bits;
+   private int             shift;
+
+   // Merkle tree of UTXOs, or null.
+   // UTXO coins or version changed in place must be toggled out and back in.
+   public UTXOMerkleTree merkle;
+
+   // Constructor.
+   // Number of stripes is rounded up to a power of two.
+   public StripedUTXOMap(int numStripes)
+   {
+      this(numStripes, false);
+   }
+
+
+   public StripedUTXOMap(int numStripes, boolean withMerkleTree)
+   {
+      int bits = 0;
+
+      while ((1 << bits) < numStripes)
+      {
+         bits++;
+      }
+      int n = 1 << bits;
+      maps  = new IntUTXOMap[n];
+      locks = new ReentrantLock[n];
+      for (int i = 0; i < n; i++)
+      {
+         maps[i]  = new IntUTXOMap();
+         locks[i] = new ReentrantLock();
+      }
+      this.bits = bits;
+      shift     = 32 - bits;
+      merkle    = null;
+      if (withMerkleTree)
+      {
+         merkle = new UTXOMerkleTree();
+      }
+   }
+
+
+   // Stripe of hash.
+   // Uses the high bits of a multiplicative hash, independent of the
+   // low bits each stripe map probes with.
+   public int stripe(int hash)
+   {
+      if (shift == 32) { return(0); }
+      return((hash * 0x9e3779b9) >>> shift);
+   }
+
+
+   // Lock stripes of hashes in ascending order.
+   // Returns the locked stripes, to be passed to unlockStripes.
+   public int[] lockStripes(int[] hashes)
+   {
+      int[] stripes = new int[hashes.length];
+
+      for (int i = 0; i < hashes.length; i++)
+      {
+         stripes[i] = stripe(hashes[i]);
+      }
+      Arrays.sort(stripes);
+      int n = 0;
+      for (int i = 0; i < stripes.length; i++)
+      {
+         if ((i == 0) || (stripes[i] != stripes[i - 1]))
+         {
+            stripes[n++] = stripes[i];
+         }
+      }
+      stripes = Arrays.copyOf(stripes, n);
+      for (int i = 0; i < n; i++)
+      {
+         locks[stripes[i]].lock();
+      }
+      return(stripes);
+   }
+
+
+   // Unlock stripes.
+   public void unlockStripes(int[] stripes)
+   {
+      for (int i = stripes.length - 1; i >= 0; i--)
+      {
+         locks[stripes[i]].unlock();
+      }
+   }
+
+
+   // Get UTXO.
+   public Ledger.UTXO get(int hash)
+   {
+      int s = stripe(hash);
+
+      locks[s].lock();
+      try
+      {
+         return(maps[s].get(hash));
+      }
+      finally
+      {
+         locks[s].unlock();
+      }
+   }
+
+
+   // Put UTXO, returning previous.
+   public Ledger.UTXO put(int hash, Ledger.UTXO utxo)
+   {
+      int s = stripe(hash);
+
+      locks[s].lock();
+      try
+      {
+         Ledger.UTXO prev = maps[s].put(hash, utxo);
+         if (merkle != null)
+         {
+            if (prev != null) { merkle.toggle(hash, prev.output); }
+            merkle.toggle(hash, utxo.output);
+         }
+         return(prev);
+      }
+      finally
+      {
+         locks[s].unlock();
+      }
+   }
+
+
+   // Remove UTXO, returning previous.
+   public Ledger.UTXO remove(int hash)
+   {
+      int s = stripe(hash);
+
+      locks[s].lock();
+      try
+      {
+         Ledger.UTXO prev = maps[s].remove(hash);
+         if ((prev != null) && (merkle != null))
+         {
+            merkle.toggle(hash, prev.output);
+         }
+         return(prev);
+      }
+      finally
+      {
+         locks[s].unlock();
+      }
+   }
+
+
+   // Contains UTXO?
+   public boolean containsKey(int hash)
+   {
+      return(get(hash) != null);
+   }
+
+
+   // Number of UTXOs.
+   public int size()
+   {
+      lockAll();
+      try
+      {
+         int n = 0;
+         for (IntUTXOMap map : maps)
+         {
+            n += map.size();
+         }
+         return(n);
+      }
+      finally
+      {
+         unlockAll();
+      }
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      lockAll();
+      try
+      {
+         for (IntUTXOMap map : maps)
+         {
+            map.clear();
+         }
+         if (merkle != null) { merkle.clear(); }
+      }
+      finally
+      {
+         unlockAll();
+      }
+   }
+
+
+   // Visit all UTXOs.
+   public void forEach(Visitor visitor)
+   {
+      lockAll();
+      try
+      {
+         for (IntUTXOMap map : maps)
+         {
+            map.forEach(visitor);
+         }
+      }
+      finally
+      {
+         unlockAll();
+      }
+   }
+
+
+   // Visit UTXOs in Merkle tree bucket, locking only the stripes that
+   // overlap it.
+   public void forEach(int bucket, Visitor visitor)
+   {
+      int m = Math.min(bits, UTXOMerkleTree.BUCKET_BITS);
+
+      for (int s = 0; s < maps.length; s++)
+      {
+         if ((s >>> (bits - m)) != (bucket >>> (UTXOMerkleTree.BUCKET_BITS - m))) { continue; }
+         locks[s].lock();
+         try
+         {
+            maps[s].forEach((hash, utxo) ->
+            {
+               if (UTXOMerkleTree.bucket(hash) == bucket)
+               {
+                  visitor.visit(hash, utxo);
+               }
+            });
+         }
+         finally
+         {
+            locks[s].unlock();
+         }
+      }
+   }
+
+
+   // Lock all stripes.
+   public void lockAll()
+   {
+      for (ReentrantLock lock : locks)
+      {
+         lock.lock();
+      }
+   }
+
+
+   // Unlock all stripes.
+   public void unlockAll()
+   {
+      for (int i = locks.length - 1; i >= 0; i--)
+      {
+         locks[i].unlock();
+      }
+   }
+}
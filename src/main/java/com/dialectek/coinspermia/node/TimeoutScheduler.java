@@ -0,0 +1,277 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Timeout scheduler.
+ * Hashed timing wheel shared by the node for transaction time-outs and
+ * retry back-offs. Expired tasks run on a worker pool; cancellation only
+ * flips the timeout state and never allocates.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.logging.Logger;
+
+public class TimeoutScheduler implements Runnable
+{
+   // Scheduled timeout.
+   public static class Timeout
+   {
+      private static final int PENDING   = 0;
+      private static final int CANCELLED = 1;
+      private static final int EXPIRED   = 2;
+
+      private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+         AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+      private Runnable     task;
+      private long         deadline;
+      private long         remainingRounds;
+      private volatile int state;
+      private Timeout      next, prev;
+      private Bucket       bucket;
+
+      private Timeout(Runnable task, long deadline)
+      {
+         this.task     = task;
+         this.deadline = deadline;
+         state         = PENDING;
+      }
+
+
+      // Cancel timeout: returns false if already expired or cancelled.
+      public boolean cancel()
+      {
+         return(STATE.compareAndSet(this, PENDING, CANCELLED));
+      }
+
+
+      public boolean isCancelled()
+      {
+         return(state == CANCELLED);
+      }
+
+
+      public boolean isExpired()
+      {
+         return(state == EXPIRED);
+      }
+   }
+
+   // Wheel bucket: list of timeouts, accessed only by the wheel thread.
+   private static class Bucket
+   {
+      Timeout head, tail;
+
+      void add(Timeout timeout)
+      {
+         timeout.bucket = this;
+         if (head == null)
+         {
+            head = tail = timeout;
+         }
+         else
+         {
+            tail.next    = timeout;
+            timeout.prev = tail;
+            tail         = timeout;
+         }
+      }
+
+
+      Timeout remove(Timeout timeout)
+      {
+         Timeout next = timeout.next;
+
+         if (timeout.prev != null)
+         {
+            timeout.prev.next = next;
+         }
+         if (timeout.next != null)
+         {
+            timeout.next.prev = timeout.prev;
+         }
+         if (timeout == head)
+         {
+            if (timeout == tail)
+            {
+               head = tail = null;
+            }
+            else
+            {
+               head = next;
+            }
+         }
+         else if (timeout == tail)
+         {
+            tail = timeout.prev;
+         }
+         timeout.prev   = null;
+         timeout.next   = null;
+         timeout.bucket = null;
+         return(next);
+      }
+   }
+
+   // Wheel.
+   private Bucket[] wheel;
+   private int      mask;
+   private long     tickDuration;
+   private long     tick;
+   private long     startTime;
+
+   // Newly scheduled timeouts, transferred to the wheel on each tick.
+   private ConcurrentLinkedQueue<Timeout> pending;
+
+   // Worker pool.
+   private ExecutorService workers;
+
+   // Wheel thread.
+   private Thread           thread;
+   private volatile boolean stopped;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(TimeoutScheduler.class .getName());
+
+   // Constructor.
+   // Tick duration is in ms; wheel size is rounded up to a power of two.
+   public TimeoutScheduler(int tickDuration, int wheelSize, int workerThreads)
+   {
+      int size = 1;
+
+      while (size < wheelSize)
+      {
+         size <<= 1;
+      }
+      wheel = new Bucket[size];
+      for (int i = 0; i < size; i++)
+      {
+         wheel[i] = new Bucket();
+      }
+      mask              = size - 1;
+      this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+      tick              = 0;
+      pending           = new ConcurrentLinkedQueue<Timeout>();
+      workers           = Executors.newFixedThreadPool(workerThreads,
+                                                       new ThreadFactory()
+                                                       {
+                                                          public Thread newThread(Runnable runnable)
+                                                          {
+                                                             Thread thread = new Thread(runnable, "timeout-worker");
+                                                             thread.setDaemon(true);
+                                                             return(thread);
+                                                          }
+                                                       });
+      stopped   = false;
+      startTime = System.nanoTime();
+      thread    = new Thread(this, "timeout-wheel");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+
+   // Schedule task to run after delay (ms).
+   public Timeout schedule(Runnable task, long delay)
+   {
+      long    deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay);
+      Timeout timeout  = new Timeout(task, deadline);
+
+      pending.add(timeout);
+      return(timeout);
+   }
+
+
+   // Stop scheduler.
+   public void stop()
+   {
+      stopped = true;
+      thread.interrupt();
+      workers.shutdown();
+   }
+
+
+   // Wheel thread.
+   public void run()
+   {
+      while (!stopped)
+      {
+         long deadline = tickDuration * (tick + 1);
+         long sleep    = deadline - (System.nanoTime() - startTime);
+         if (sleep > 0)
+         {
+            try
+            {
+               Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleep + 999999));
+            }
+            catch (InterruptedException e)
+            {
+               if (stopped) { break; }
+            }
+            continue;
+         }
+         transferPending();
+         expire(wheel[(int)(tick & mask)], deadline);
+         tick++;
+      }
+   }
+
+
+   // Move newly scheduled timeouts into their buckets.
+   private void transferPending()
+   {
+      Timeout timeout;
+
+      while ((timeout = pending.poll()) != null)
+      {
+         if (timeout.isCancelled()) { continue; }
+         long ticks = timeout.deadline / tickDuration;
+         timeout.remainingRounds = (ticks - tick) / wheel.length;
+         if (ticks < tick) { ticks = tick; }
+         wheel[(int)(ticks & mask)].add(timeout);
+      }
+   }
+
+
+   // Expire due timeouts in bucket.
+   private void expire(Bucket bucket, long deadline)
+   {
+      Timeout timeout = bucket.head;
+
+      while (timeout != null)
+      {
+         if (timeout.isCancelled())
+         {
+            timeout = bucket.remove(timeout);
+         }
+         else if ((timeout.remainingRounds <= 0) && (timeout.deadline <= deadline))
+         {
+            Timeout next = bucket.remove(timeout);
+            if (Timeout.STATE.compareAndSet(timeout, Timeout.PENDING, Timeout.EXPIRED))
+            {
+               try
+               {
+                  workers.execute(timeout.task);
+               }
+               catch (Exception e)
+               {
+                  logger.severe("Cannot run timeout task: " + e.getMessage());
+               }
+            }
+            timeout = next;
+         }
+         else
+         {
+            if (timeout.remainingRounds > 0)
+            {
+               timeout.remainingRounds--;
+            }
+            timeout = timeout.next;
+         }
+      }
+   }
+}
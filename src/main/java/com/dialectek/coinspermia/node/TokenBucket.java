@@ -0,0 +1,74 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Token bucket.
+ * Admits requests at a sustained rate with bursts up to the bucket size.
+ */
+
+package com.dialectek.coinspermia.node;
+
+public class TokenBucket
+{
+   // Rate (tokens/s) and burst size.
+   private double rate;
+   private double burst;
+
+   // Tokens, and when last refilled (ns).
+   private double tokens;
+   private long   refillTime;
+
+   // Requests admitted and throttled.
+   public long admitted;
+   public long throttled;
+
+   // Constructor: the bucket starts full.
+   public TokenBucket(double rate, double burst)
+   {
+      this.rate  = rate;
+      this.burst = burst;
+      tokens     = burst;
+      refillTime = System.nanoTime();
+   }
+
+
+   // Take a token: returns false if there is none.
+   public synchronized boolean take()
+   {
+      refill();
+      if (tokens < 1.0)
+      {
+         throttled++;
+         return(false);
+      }
+      tokens -= 1.0;
+      admitted++;
+      return(true);
+   }
+
+
+   // Return a token taken for a request that was then refused.
+   public synchronized void refund()
+   {
+      refill();
+      tokens = Math.min(burst, tokens + 1.0);
+      admitted--;
+   }
+
+
+   // Full and idle?
+   public synchronized boolean full()
+   {
+      refill();
+      return(tokens >= burst);
+   }
+
+
+   // Refill for time elapsed.
+   private void refill()
+   {
+      long now = System.nanoTime();
+
+      tokens     = Math.min(burst, tokens + (((now - refillTime) * rate) / 1e9));
+      refillTime = now;
+   }
+}
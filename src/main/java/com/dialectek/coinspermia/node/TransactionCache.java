@@ -0,0 +1,130 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * In-flight transaction cache.
+ * Quorum members keep the transactions they are asked to lock, keyed by
+ * transaction id, so later lock, unlock and commit rounds can refer to a
+ * transaction by id alone. Entries expire on the node timeout scheduler.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class TransactionCache
+{
+   // Cache entry.
+   private class Entry implements Runnable
+   {
+      Transaction              transaction;
+      TimeoutScheduler.Timeout timer;
+
+      Entry(Transaction transaction)
+      {
+         this.transaction = transaction;
+      }
+
+
+      // Expire entry.
+      public void run()
+      {
+         transactions.remove(transaction.id, this);
+      }
+   }
+
+   // Cached transactions.
+   private ConcurrentHashMap<UUID, Entry> transactions;
+
+   // Entry time-out (ms).
+   private int timeOut;
+
+   // Metrics.
+   public AtomicLong hits;
+   public AtomicLong misses;
+
+   // Constructor.
+   public TransactionCache(int timeOut)
+   {
+      this.timeOut = timeOut;
+      transactions = new ConcurrentHashMap<UUID, Entry>();
+      hits         = new AtomicLong();
+      misses       = new AtomicLong();
+   }
+
+
+   // Cache transaction, returning the cached instance.
+   // A transaction already cached under the id is kept, so ledger locks
+   // taken by it still match; its time-out is restarted.
+   public Transaction put(Transaction transaction)
+   {
+      Entry entry = new Entry(transaction);
+      Entry prev  = transactions.putIfAbsent(transaction.id, entry);
+
+      if (prev != null) { entry = prev; }
+      synchronized (entry)
+      {
+         if (entry.timer != null) { entry.timer.cancel(); }
+         entry.timer = Node.node.timeouts.schedule(entry, timeOut);
+      }
+      return(entry.transaction);
+   }
+
+
+   // Get transaction by id: null if not cached.
+   public Transaction get(UUID id)
+   {
+      Entry entry = null;
+
+      if (id != null) { entry = transactions.get(id); }
+      if (entry == null)
+      {
+         misses.incrementAndGet();
+         return(null);
+      }
+      hits.incrementAndGet();
+      return(entry.transaction);
+   }
+
+
+   // Get and remove transaction by id: null if not cached.
+   public Transaction take(UUID id)
+   {
+      Transaction transaction = get(id);
+
+      remove(id);
+      return(transaction);
+   }
+
+
+   // Remove transaction.
+   public void remove(UUID id)
+   {
+      if (id == null) { return; }
+      Entry entry = transactions.remove(id);
+      if (entry != null)
+      {
+         synchronized (entry)
+         {
+            if (entry.timer != null) { entry.timer.cancel(); }
+         }
+      }
+   }
+
+
+   // Number of cached transactions.
+   public int size()
+   {
+      return(transactions.size());
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      return("Transaction cache: size=" + transactions.size() + ", hits=" + hits.get() + ", misses=" + misses.get());
+   }
+}
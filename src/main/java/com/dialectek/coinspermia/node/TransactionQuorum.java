@@ -2,28 +2,31 @@
 
 /**
  * Transaction quorum.
+ * Optionally, lock requests are hedged: a member that has not voted by a
+ * deadline taken from a percentile of member vote times has its slot in
+ * the quorum offered to a spare peer, and the slot is filled by whichever
+ * votes first. Every slot is still filled by a randomly chosen peer, so
+ * the quorum keeps the intersection probability its size was chosen for;
+ * a late vote against the transaction still counts if it arrives before
+ * the votes are counted. Spares serve only the round they were hedged in,
+ * and the majority is over the quorum's slots.
  */
 
 package com.dialectek.coinspermia.node;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
-import javax.websocket.CloseReason;
 import javax.websocket.Session;
-import javax.websocket.CloseReason.CloseCodes;
-import javax.swing.Timer;
-import org.glassfish.tyrus.client.ClientManager;
 
 import com.dialectek.coinspermia.shared.Message;
+import com.dialectek.coinspermia.shared.MessageEncoder;
 import com.dialectek.coinspermia.shared.Parameters;
 import com.dialectek.coinspermia.shared.Transaction;
 
-public class TransactionQuorum implements ActionListener
+public class TransactionQuorum implements Runnable
 {
    // Transaction.
    public Transaction transaction;
@@ -34,14 +37,34 @@ public class TransactionQuorum implements ActionListener
    // Quorum members.
    public class Member
    {
-      public String address;
-      public int    result, prevResult;
+      public String                     address;
+      public int                        result, prevResult;
+      public CompletableFuture<Integer> vote;
+      public boolean                    shipped;
+
+      // Quorum slot filled by the member: its own, or, for a hedge, that of
+      // the member it stands in for. A slot records who filled it and when.
+      public Member slot;
+      public Member filledBy;
+      public long   filled;
    }
    public ArrayList<Member> members;
 
+   // Spares hedging members' slots in the current lock round.
+   public ArrayList<Member> spares;
+
    // Quorum timer.
-   public Date  startTime;
-   public Timer timer;
+   public Date                     startTime;
+   public long                     startNanos;
+   public TimeoutScheduler.Timeout timer;
+
+   // Lock round, carried by lock requests and echoed by responses, and its
+   // start time; both are read and written under the quorum lock.
+   public int  round;
+   public long roundStart;
+
+   // Committed or aborted?
+   public boolean finished;
 
    // Logging.
    private static Logger logger = Logger.getLogger(TransactionQuorum.class .getName());
@@ -50,19 +73,36 @@ public class TransactionQuorum implements ActionListener
    public TransactionQuorum(Transaction transaction, Session clientSession)
    {
       members = new ArrayList<Member>();
+      spares  = new ArrayList<Member>();
       Member member = new Member();
       members.add(member);
       member.address     = Node.node.address;
       member.result      = member.prevResult = -1;
       this.transaction   = transaction;
       this.clientSession = clientSession;
+      round              = 0;
+      finished           = false;
    }
 
 
    // Start quorum.
-   public void start()
+   public synchronized void start()
    {
-      // Randomly select quorum members.
+      // Set transaction timer.
+      startTime  = new Date();
+      startNanos = System.nanoTime();
+      timer      = Node.node.timeouts.schedule(this, Parameters.TRANSACTION_TIME_OUT);
+
+      // Charge the input keys' rate limits once their signatures verify;
+      // a transaction over a key's limit is refused as busy.
+      if ((Node.node.ledger.validate(transaction) == Parameters.SUCCESS) &&
+          !Node.node.dispatcher.rateLimiter.admitKeys(transaction))
+      {
+         abort(Parameters.BUSY);
+         return;
+      }
+
+      // Randomly select quorum members, weighted by peer health.
       ArrayList<String> peers = new ArrayList<String>();
       synchronized (Node.node.connectedPeers)
       {
@@ -72,32 +112,51 @@ public class TransactionQuorum implements ActionListener
          }
       }
 
-      for (int i = 0; i < Node.node.peerConnectionDensity && peers.size() > 0; i++)
+      for (String peer : Node.node.peerHealth.select(peers, Node.node.peerConnectionDensity, Node.node.randomizer))
       {
          Member member = new Member();
          members.add(member);
-         member.address = peers.get(Node.node.randomizer.nextInt(peers.size()));
-         peers.remove(member.address);
-         member.result = member.prevResult = -1;
+         member.address = peer;
+         member.result  = member.prevResult = -1;
       }
 
-      // Set transaction timer.
-      startTime = new Date();
-      timer     = new Timer(Parameters.TRANSACTION_TIME_OUT, this);
-      timer.start();
-
       // Lock transaction prior to commit.
       lock();
    }
 
 
    // Lock transaction.
-   public void lock()
+   // Lock requests are sent to all members concurrently; votes are
+   // counted when every member's vote future for this round completes.
+   // Members are sent the transaction once and its id thereafter.
+   public synchronized void lock()
    {
-      for (Member member : members)
+      if (finished) { return; }
+      round++;
+      roundStart = System.nanoTime();
+      Node.node.quorumStats.rounds.incrementAndGet();
+      CompletableFuture<?>[] votes = new CompletableFuture<?>[members.size()];
+      for (int i = 0, j = members.size(); i < j; i++)
       {
-         member.result = -1;
+         Member member = members.get(i);
+         member.result   = -1;
+         member.vote     = new CompletableFuture<Integer>();
+         member.slot     = member;
+         member.filledBy = null;
+         votes[i]        = member.vote;
       }
+      final int lockRound = round;
+      CompletableFuture.allOf(votes).thenRun(() -> countVotes(lockRound));
+
+      // Schedule hedging of members slow to vote.
+      if ((Node.node.lockHedgePercentile > 0) && (members.size() > 1) &&
+          (Node.node.quorumStats.memberVote.count() >= Parameters.LOCK_HEDGE_MIN_SAMPLES))
+      {
+         long deadline = Math.max(Parameters.LOCK_HEDGE_MIN_DELAY,
+                                  Node.node.quorumStats.memberVote.percentile(Node.node.lockHedgePercentile) / 1000);
+         Node.node.timeouts.schedule(() -> hedge(lockRound), deadline);
+      }
+
       Member member = members.get(0);
       int    result = Node.node.ledger.validate(transaction);
       if (result == Parameters.SUCCESS)
@@ -111,34 +170,37 @@ public class TransactionQuorum implements ActionListener
       else
       {
          abort(result);
+         return;
       }
       if (members.size() > 1)
       {
-         Message message = new Message(Message.LOCK_REQUEST);
-         message.sender      = Node.node.address;
-         message.transaction = transaction;
-         message.password    = Node.node.password;
-         ClientManager client = ClientManager.createClient();
+         Message message = newRequest(Message.LOCK_REQUEST, true);
+         Message reference = newRequest(Message.LOCK_REQUEST, false);
+         CompletableFuture<?>[] sends = new CompletableFuture<?>[members.size() - 1];
          for (int i = 1, j = members.size(); i < j; i++)
          {
-            member     = members.get(i);
-            message.id = transaction.id;
-            try
+            member = members.get(i);
+            String address = member.address;
+            if (member.shipped)
             {
-               Session session = client.connectToServer(ClientEndpoint.class,
-                                                        new URI(Parameters.WEBSOCKET_PROTOCOL + "://" + member.address + "/ws" + Parameters.URI));
-               session.getBasicRemote().sendObject(message);
+               Node.node.quorumStats.referenceSends.incrementAndGet();
+               sends[i - 1] = Node.node.peerSessions.sendAsync(address, reference,
+                                                               "Cannot send transaction lock request to member " + address);
             }
-            catch (Exception e)
+            else
             {
-               logger.severe("Cannot send transaction lock request to member " + member.address + ": " + e.getMessage());
+               member.shipped = true;
+               sends[i - 1]   = Node.node.peerSessions.sendAsync(address, message,
+                                                                 "Cannot send transaction lock request to member " + address);
             }
          }
+         final long start = roundStart;
+         CompletableFuture.allOf(sends).thenRun(() -> Node.node.quorumStats.lockSend.record((System.nanoTime() - start) / 1000));
       }
    }
 
 
-   // Unlock transaction.
+   // Unlock transaction, ending the round's hedges.
    public void unlock()
    {
       for (Member member : members)
@@ -148,44 +210,86 @@ public class TransactionQuorum implements ActionListener
       Node.node.ledger.unlock(transaction);
       if (members.size() > 1)
       {
-         Message message = new Message(Message.UNLOCK_REQUEST);
-         message.sender      = Node.node.address;
-         message.transaction = transaction;
-         message.password    = Node.node.password;
-         ClientManager client = ClientManager.createClient();
+         // Members that were sent the transaction have it cached; a member
+         // that has since lost it holds no lock to release.
+         Message message = newRequest(Message.UNLOCK_REQUEST, false);
          for (int i = 1, j = members.size(); i < j; i++)
          {
-            Member member = members.get(i);
-            message.id = transaction.id;
-            try
-            {
-               Session session = client.connectToServer(ClientEndpoint.class,
-                                                        new URI(Parameters.WEBSOCKET_PROTOCOL + "://" + member.address + "/ws" + Parameters.URI));
-               session.getBasicRemote().sendObject(message);
-               session.close(new CloseReason(CloseCodes.NORMAL_CLOSURE, "Session close"));
-            }
-            catch (Exception e)
-            {
-               logger.severe("Cannot send transaction unlock request to member " + member.address + ": " + e.getMessage());
-            }
+            String address = members.get(i).address;
+            Node.node.peerSessions.sendAsync(address, message,
+                                             "Cannot send transaction unlock request to member " + address);
          }
       }
+      releaseSpares();
+   }
+
+
+   // Release the round's spares: they leave the quorum, unlocking what
+   // they locked.
+   private void releaseSpares()
+   {
+      if (spares.isEmpty()) { return; }
+      Message message = newRequest(Message.UNLOCK_REQUEST, false);
+      for (Member spare : spares)
+      {
+         Node.node.peerSessions.sendAsync(spare.address, message,
+                                          "Cannot send transaction unlock request to spare " + spare.address);
+      }
+      spares.clear();
+   }
+
+
+   // New request to members, with the transaction or its id only.
+   private Message newRequest(int type, boolean withTransaction)
+   {
+      Message message = new Message(type);
+
+      message.sender   = Node.node.address;
+      message.password = Node.node.password;
+      message.id       = transaction.id;
+      message.round    = round;
+      if (withTransaction)
+      {
+         message.transaction = transaction;
+      }
+      return(message);
    }
 
 
    // Lock transaction request.
+   // A request with the transaction caches it; a request with only the
+   // id uses the cached transaction, answering UNKNOWN if there is none.
    public static void lockRequest(Message message, Session session)
    {
-      message.type   = Message.LOCK_RESPONSE;
-      message.sender = Node.node.address;
-      message.result = Node.node.ledger.validate(message.transaction);
-      if (message.result == Parameters.SUCCESS)
+      Transaction transaction;
+
+      if (message.transaction != null)
       {
-         message.result = Node.node.ledger.lock(message.transaction);
+         transaction = Node.node.transactionCache.put(message.transaction);
+      }
+      else
+      {
+         transaction = Node.node.transactionCache.get(message.id);
+      }
+      message.type        = Message.LOCK_RESPONSE;
+      message.sender      = Node.node.address;
+      message.transaction = null;
+      if (transaction == null)
+      {
+         message.result = Parameters.UNKNOWN;
+      }
+      else
+      {
+         message.id     = transaction.id;
+         message.result = Node.node.ledger.validate(transaction);
+         if (message.result == Parameters.SUCCESS)
+         {
+            message.result = Node.node.ledger.lock(transaction);
+         }
       }
       try
       {
-         session.getBasicRemote().sendObject(message);
+         MessageEncoder.send(session, message);
       }
       catch (Exception e)
       {
@@ -195,41 +299,161 @@ public class TransactionQuorum implements ActionListener
 
 
    // Lock response.
-   public void lockResponse(Message message)
+   // A response to an earlier round's request is dropped: its member votes
+   // again in the current round. Only a lock vote, success or lock failure,
+   // counts toward the sender's health; a busy, unknown or other error
+   // result counts against it.
+   public synchronized void lockResponse(Message message)
    {
-      tallyResult(message.sender, message.result);
+      if (finished || (message.round != round)) { return; }
+      if ((message.result == Parameters.SUCCESS) || (message.result == Parameters.LOCK_FAIL))
+      {
+         Node.node.peerHealth.success(message.sender, (System.nanoTime() - roundStart) / 1000);
+      }
+      else
+      {
+         Node.node.peerHealth.failure(message.sender);
+      }
+      if (message.result == Parameters.UNKNOWN)
+      {
+         resendLock(message.sender);
+      }
+      else
+      {
+         tallyResult(message.sender, message.result);
+      }
    }
 
 
-   // Tally member lock result.
-   public void tallyResult(String address, int result)
+   // Resend lock request with the transaction to a member or spare that
+   // does not have it cached, if it has yet to vote this round.
+   private synchronized void resendLock(String address)
    {
-      boolean complete = true;
+      if (finished) { return; }
+      Member member = voter(address);
+      if ((member != null) && (member != members.get(0)))
+      {
+         Node.node.quorumStats.resends.incrementAndGet();
+         Node.node.peerSessions.sendAsync(address, newRequest(Message.LOCK_REQUEST, true),
+                                          "Cannot send transaction lock request to member " + address);
+      }
+   }
 
-      for (int i = 0, j = members.size(); i < j; i++)
+
+   // Member or spare at address yet to vote this round, or null.
+   private Member voter(String address)
+   {
+      for (Member member : members)
       {
-         Member member = members.get(i);
-         if (member.address.equals(address))
-         {
-            member.result = result;
-         }
-         if (member.result == -1)
+         if (member.address.equals(address) && (member.result == -1)) { return(member); }
+      }
+      for (Member spare : spares)
+      {
+         if (spare.address.equals(address) && (spare.result == -1)) { return(spare); }
+      }
+      return(null);
+   }
+
+
+   // Hedge lock round: offer the slots of members yet to vote to spare
+   // peers, chosen as members are.
+   private synchronized void hedge(int lockRound)
+   {
+      if (finished || (lockRound != round)) { return; }
+      ArrayList<String> peers = new ArrayList<String>();
+      synchronized (Node.node.connectedPeers)
+      {
+         for (String peer : Node.node.connectedPeers)
          {
-            complete = false;
+            peers.add(peer);
          }
       }
-      if (!complete) { return; }
-
-      // Count votes.
-      int votes = 0;
-      result = Parameters.SUCCESS;
-      for (int i = 0, j = members.size(); i < j; i++)
+      for (Member member : members)
+      {
+         peers.remove(member.address);
+      }
+      for (Member spare : spares)
+      {
+         peers.remove(spare.address);
+      }
+      Message message = null;
+      for (int i = 1, j = members.size(); i < j && peers.size() > 0; i++)
       {
          Member member = members.get(i);
+         if (member.vote.isDone()) { continue; }
+         Member spare = new Member();
+         spare.address  = Node.node.peerHealth.select(peers, 1, Node.node.randomizer).get(0);
+         peers.remove(spare.address);
+         spare.result   = spare.prevResult = -1;
+         spare.vote     = new CompletableFuture<Integer>();
+         spare.slot     = member;
+         spare.shipped  = true;
+         spares.add(spare);
+         Node.node.quorumStats.hedges.incrementAndGet();
+         if (message == null) { message = newRequest(Message.LOCK_REQUEST, true); }
+         Node.node.peerSessions.sendAsync(spare.address, message,
+                                          "Cannot send hedged transaction lock request to member " + spare.address);
+      }
+   }
+
+
+   // Tally member lock result.
+   // The first vote for a slot fills it. A member that votes after its
+   // slot was filled by a hedge shows the time the hedge saved.
+   public synchronized void tallyResult(String address, int result)
+   {
+      Member member = voter(address);
+
+      if (member == null) { return; }
+      long now = System.nanoTime();
+      member.result = result;
+      if (member != members.get(0))
+      {
+         Node.node.quorumStats.memberVote.record((now - roundStart) / 1000);
+      }
+      Member slot = member.slot;
+      if (slot.filledBy == null)
+      {
+         slot.filledBy = member;
+         slot.filled   = now;
+         if (member != slot) { Node.node.quorumStats.hedgeWins.incrementAndGet(); }
+         slot.vote.complete(result);
+      }
+      else if ((member == slot) && (slot.filledBy != slot))
+      {
+         Node.node.quorumStats.hedgeSaving.record((now - slot.filled) / 1000);
+      }
+   }
+
+
+   // Count votes when all members have voted.
+   private synchronized void countVotes(int lockRound)
+   {
+      if (finished || (lockRound != round)) { return; }
+      Node.node.quorumStats.lastVote.record((System.nanoTime() - roundStart) / 1000);
+
+      // Count each slot's vote: that of the member or spare filling it. A
+      // vote against by the other still counts. A member whose slot was
+      // filled by a hedge has saved at least the time since.
+      int               votes     = 0;
+      int               result    = Parameters.SUCCESS;
+      long              countTime = System.nanoTime();
+      ArrayList<Member> voters    = new ArrayList<Member>(members);
+      voters.addAll(spares);
+      for (Member member : voters)
+      {
+         if (member.result == -1)
+         {
+            if ((member.slot == member) && (member.filledBy != member))
+            {
+               Node.node.quorumStats.hedgeSaving.record((countTime - member.filled) / 1000);
+            }
+            continue;
+         }
          switch (member.result)
          {
          case Parameters.SUCCESS:
-            votes++;
+            if (member.slot.filledBy == member) { votes++; }
             break;
 
          case Parameters.FAIL:
@@ -243,6 +467,10 @@ public class TransactionQuorum implements ActionListener
             result = member.result;
             break;
 
+         case Parameters.BUSY:
+            result = Parameters.LOCK_FAIL;
+            break;
+
          default:
             abort(member.result);
             return;
@@ -261,7 +489,7 @@ public class TransactionQuorum implements ActionListener
          boolean changed = false;
          for (Member member : members)
          {
-            if (member.result != member.prevResult)
+            if (member.filledBy.result != member.prevResult)
             {
                changed = true;
                break;
@@ -282,13 +510,15 @@ public class TransactionQuorum implements ActionListener
       }
 
       // Wait to retry.
-      timer.stop();
+      Node.node.quorumStats.retries.incrementAndGet();
+      timer.cancel();
       if (result == Parameters.FAIL)
       {
          for (Member member : members)
          {
-            member.prevResult = member.result;
+            member.prevResult = member.filledBy.result;
          }
+         releaseSpares();
       }
       else
       {
@@ -308,60 +538,50 @@ public class TransactionQuorum implements ActionListener
       }
       else
       {
-         timer = new Timer(wait, this);
-         timer.start();
+         timer = Node.node.timeouts.schedule(this, wait);
       }
    }
 
 
    // Unlock transaction request.
+   // Ledger locks are held by the cached transaction.
    public static void unlockRequest(Message message)
    {
-      Node.node.ledger.unlock(message.transaction);
+      Transaction transaction = Node.node.transactionCache.get(message.id);
+
+      if (transaction == null)
+      {
+         transaction = message.transaction;
+      }
+      if (transaction != null)
+      {
+         Node.node.ledger.unlock(transaction);
+      }
    }
 
 
    // Commit transaction.
-   public void commit()
+   public synchronized void commit()
    {
-      timer.stop();
-      synchronized (Node.node.transactionQuorums)
-      {
-         Node.node.transactionQuorums.remove(transaction.id);
-      }
+      long start = System.nanoTime();
+      finished = true;
+      timer.cancel();
+      Node.node.transactionQuorums.remove(transaction.id, this);
       unlock();
       int result = Node.node.ledger.commit(transaction);
       if (result == Parameters.SUCCESS)
       {
-         // Propagate commit.
-         ArrayList<String> peers = new ArrayList<String>();
-         synchronized (Node.node.connectedPeers)
-         {
-            for (String peer : Node.node.connectedPeers)
-            {
-               peers.add(peer);
-            }
-         }
-         Message message = new Message(Message.COMMIT_REQUEST);
-         message.sender      = Node.node.address;
-         message.transaction = transaction;
-         message.password    = Node.node.password;
-         ClientManager client = ClientManager.createClient();
-         for (int i = 0, j = peers.size(); i < j; i++)
+         // Gossip commit: members that were sent the transaction are sent
+         // its id, other peers the transaction.
+         Node.node.gossip.originate(transaction.id);
+         ArrayList<String> shipped = new ArrayList<String>();
+         for (int i = 1, j = members.size(); i < j; i++)
          {
-            String peer = peers.get(i);
-            try
-            {
-               Session session = client.connectToServer(ClientEndpoint.class,
-                                                        new URI(Parameters.WEBSOCKET_PROTOCOL + "://" + peer + "/ws" + Parameters.URI));
-               session.getBasicRemote().sendObject(message);
-               session.close(new CloseReason(CloseCodes.NORMAL_CLOSURE, "Session close"));
-            }
-            catch (Exception e)
-            {
-               logger.severe("Cannot propagate transaction commit to peer " + peer + ": " + e.getMessage());
-            }
+            Member member = members.get(i);
+            if (member.shipped) { shipped.add(member.address); }
          }
+         Node.node.gossip.send(transaction, true, shipped);
+         Node.node.gossip.send(transaction, false, Node.node.gossip.select(shipped));
       }
 
       // Respond to client.
@@ -371,23 +591,26 @@ public class TransactionQuorum implements ActionListener
       message.result      = result;
       try
       {
-         clientSession.getBasicRemote().sendObject(message);
+         MessageEncoder.send(clientSession, message);
       }
       catch (Exception e)
       {
          logger.severe("Cannot send transaction result to client, session id=" + clientSession.getId() + ": " + e.getMessage());
       }
+      long now = System.nanoTime();
+      Node.node.quorumStats.commit.record((now - start) / 1000);
+      Node.node.quorumStats.total.record((now - startNanos) / 1000);
+      Node.node.quorumStats.commits.incrementAndGet();
    }
 
 
    // Abort transaction.
-   public void abort(int result)
+   public synchronized void abort(int result)
    {
-      timer.stop();
-      synchronized (Node.node.transactionQuorums)
-      {
-         Node.node.transactionQuorums.remove(transaction.id);
-      }
+      finished = true;
+      Node.node.quorumStats.aborts.incrementAndGet();
+      timer.cancel();
+      Node.node.transactionQuorums.remove(transaction.id, this);
       unlock();
       Message message = new Message(Message.TRANSACTION_RESPONSE);
       message.sender      = Node.node.address;
@@ -395,7 +618,7 @@ public class TransactionQuorum implements ActionListener
       message.result      = result;
       try
       {
-         clientSession.getBasicRemote().sendObject(message);
+         MessageEncoder.send(clientSession, message);
       }
       catch (Exception e)
       {
@@ -405,19 +628,28 @@ public class TransactionQuorum implements ActionListener
 
 
    // Timer expiration.
-   public void actionPerformed(ActionEvent arg)
+   public synchronized void run()
    {
-      timer.stop();
+      if (finished) { return; }
+      timer.cancel();
       Date now = new Date();
       long t   = now.getTime() - startTime.getTime();
       if (t >= Parameters.TRANSACTION_TIME_OUT)
       {
+         // Members that have not voted count against their health.
+         for (int i = 1, j = members.size(); i < j; i++)
+         {
+            Member member = members.get(i);
+            if (member.result == -1)
+            {
+               Node.node.peerHealth.failure(member.address);
+            }
+         }
          abort(Parameters.TIME_OUT);
       }
       else
       {
-         timer = new Timer(Parameters.TRANSACTION_TIME_OUT - (int)t, this);
-         timer.start();
+         timer = Node.node.timeouts.schedule(this, Parameters.TRANSACTION_TIME_OUT - t);
          lock();
       }
    }
@@ -0,0 +1,37 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * UTXO map: unspent transaction outputs keyed by public key hash.
+ */
+
+package com.dialectek.coinspermia.node;
+
+public interface UTXOMap
+{
+   // UTXO visitor.
+   public interface Visitor
+   {
+      public void visit(int hash, Ledger.UTXO utxo);
+   }
+
+   // Get UTXO.
+   public Ledger.UTXO get(int hash);
+
+   // Put UTXO, returning previous.
+   public Ledger.UTXO put(int hash, Ledger.UTXO utxo);
+
+   // Remove UTXO, returning previous.
+   public Ledger.UTXO remove(int hash);
+
+   // Contains UTXO?
+   public boolean containsKey(int hash);
+
+   // Number of UTXOs.
+   public int size();
+
+   // Clear.
+   public void clear();
+
+   // Visit all UTXOs.
+   public void forEach(Visitor visitor);
+}
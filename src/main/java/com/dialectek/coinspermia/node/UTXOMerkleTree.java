@@ -0,0 +1,103 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * UTXO Merkle tree.
+ * UTXOs are partitioned by public key hash into buckets; each bucket digest
+ * is the XOR of its UTXO digests, so it is updated in place as UTXOs come
+ * and go, in any order. Interior digests are computed from the buckets on
+ * demand. Nodes are numbered as a binary heap: the root is 1 and the
+ * children of node n are 2n and 2n + 1; bucket b is node BUCKETS + b.
+ * Buckets use the high bits of the same multiplicative hash as the ledger
+ * lock stripes, so a bucket lies within one stripe when there are no more
+ * stripes than buckets.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.dialectek.coinspermia.shared.Parameters;
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class UTXOMerkleTree
+{
+   // Buckets: a power of two.
+   public static final int BUCKET_BITS = Parameters.ANTI_ENTROPY_BUCKET_BITS;
+   public static final int BUCKETS     = 1 << BUCKET_BITS;
+
+   // Bucket digests.
+   private AtomicLongArray buckets;
+
+   // Constructor.
+   public UTXOMerkleTree()
+   {
+      buckets = new AtomicLongArray(BUCKETS);
+   }
+
+
+   // Bucket of hash.
+   public static int bucket(int hash)
+   {
+      return((hash * 0x9e3779b9) >>> (32 - BUCKET_BITS));
+   }
+
+
+   // UTXO digest: covers the key hash, coins, version and output id, which
+   // a ledger loaded from a snapshot reproduces. The id tells apart UTXOs
+   // that reached the same version by different commits.
+   public static long digest(int hash, float coins, int version, UUID id)
+   {
+      long d = mix(mix(((long)hash << 32) | (Float.floatToIntBits(coins) & 0xffffffffL)) + version);
+
+      return(mix(mix(d ^ id.getMostSignificantBits()) + id.getLeastSignificantBits()));
+   }
+
+
+   // Add or remove UTXO: the same call does both.
+   public void toggle(int hash, Transaction.Output output)
+   {
+      final long d = digest(hash, output.coins, output.version, output.id);
+
+      buckets.accumulateAndGet(bucket(hash), d, (a, b) -> a ^ b);
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         buckets.set(i, 0L);
+      }
+   }
+
+
+   // Compute all node digests, indexed by node number.
+   public long[] digests()
+   {
+      long[] nodes = new long[BUCKETS * 2];
+
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         nodes[BUCKETS + i] = buckets.get(i);
+      }
+      for (int i = BUCKETS - 1; i > 0; i--)
+      {
+         nodes[i] = mix((nodes[2 * i] * 0x9e3779b97f4a7c15L) + nodes[(2 * i) + 1]);
+      }
+      return(nodes);
+   }
+
+
+   // Mix bits (MurmurHash3 finalizer).
+   private static long mix(long h)
+   {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return(h);
+   }
+}
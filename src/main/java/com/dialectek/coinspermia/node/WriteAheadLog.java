@@ -0,0 +1,384 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Write-ahead log.
+ * Append-only binary log of ledger changes made since the last snapshot.
+ * Each record is: length, sequence number, type, payload and CRC32.
+ * Durability uses group commit: the first committer waiting for a sync
+ * becomes the leader, waits out the fsync window so concurrent commits can
+ * join, then forces the log once for all of them.
+ */
+
+package com.dialectek.coinspermia.node;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.dialectek.coinspermia.shared.Transaction;
+
+public class WriteAheadLog
+{
+   // Record types.
+   public static final byte COMMIT    = 1;
+   public static final byte CLEAR     = 2;
+   public static final byte RECONCILE = 3;
+
+   // Record header: length, sequence number and type.
+   private static final int HEADER_SIZE = 4 + 8 + 1;
+
+   // Log file.
+   private String      fileName;
+   private FileChannel channel;
+
+   // Group commit window (ms).
+   private int fsyncWindow;
+
+   // Last appended and last durable sequence numbers.
+   private long    sequence;
+   private long    durable;
+   private boolean syncing;
+
+   // Metrics.
+   public AtomicLong appends;
+   public AtomicLong syncs;
+
+   // Logging.
+   private static Logger logger = Logger.getLogger(WriteAheadLog.class .getName());
+
+   // Constructor.
+   public WriteAheadLog(String fileName, int fsyncWindow)
+   {
+      this.fileName    = fileName;
+      this.fsyncWindow = fsyncWindow;
+      channel          = null;
+      sequence         = 0;
+      durable          = 0;
+      syncing          = false;
+      appends          = new AtomicLong();
+      syncs            = new AtomicLong();
+   }
+
+
+   // Replay records after snapshot sequence number into ledger.
+   // A torn or corrupt tail record ends the log and is truncated.
+   // Returns the last sequence number in the log.
+   public long replay(Ledger ledger, long snapshotSequence) throws IOException
+   {
+      File file = new File(fileName);
+      long last = snapshotSequence;
+      long end  = 0;
+      int  n    = 0;
+
+      if (!file.exists()) { return(last); }
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+         {
+            while (true)
+            {
+               byte[] record;
+               long   crc;
+               try
+               {
+                  int length = in.readInt();
+                  if ((length < (HEADER_SIZE - 4)) || (length > (file.length() - end)))
+                  {
+                     break;
+                  }
+                  record = new byte[length];
+                  in.readFully(record);
+                  crc = in.readInt() & 0xffffffffL;
+               }
+               catch (EOFException e)
+               {
+                  break;
+               }
+               CRC32 checksum = new CRC32();
+               checksum.update(record);
+               if (checksum.getValue() != crc)
+               {
+                  break;
+               }
+               DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+               long            seq      = recordIn.readLong();
+               byte            type     = recordIn.readByte();
+               if (seq > snapshotSequence)
+               {
+                  if (type == COMMIT)
+                  {
+                     ledger.commit(Transaction.read(recordIn));
+                  }
+                  else if (type == CLEAR)
+                  {
+                     ledger.clear();
+                  }
+                  else if (type == RECONCILE)
+                  {
+                     Transaction set = Transaction.read(recordIn);
+                     ledger.restore(set, Transaction.read(recordIn));
+                  }
+                  n++;
+               }
+               if (seq > last) { last = seq; }
+               end += 4 + record.length + 4;
+            }
+         }
+      if (end < file.length())
+      {
+         logger.warning("Truncating write-ahead log " + fileName + " at " + end + " of " + file.length() + " bytes");
+         try (FileChannel truncateChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+            {
+               truncateChannel.truncate(end);
+               truncateChannel.force(true);
+            }
+      }
+      logger.info("Replayed " + n + " records from write-ahead log " + fileName);
+      return(last);
+   }
+
+
+   // Open log for appending after sequence number.
+   public synchronized void open(long sequence) throws IOException
+   {
+      channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      this.sequence = sequence;
+      durable       = sequence;
+   }
+
+
+   // Append committed transaction, returning its sequence number.
+   public long append(Transaction transaction) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+      transaction.write(new DataOutputStream(bytes));
+      return(append(COMMIT, bytes.toByteArray()));
+   }
+
+
+   // Append anti-entropy changes, as the outputs set and the outputs spent,
+   // returning its sequence number.
+   public long appendReconcile(Transaction set, Transaction spends) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream      out   = new DataOutputStream(bytes);
+
+      set.write(out);
+      spends.write(out);
+      return(append(RECONCILE, bytes.toByteArray()));
+   }
+
+
+   // Append ledger clear, returning its sequence number.
+   public long appendClear() throws IOException
+   {
+      return(append(CLEAR, new byte[0]));
+   }
+
+
+   // Append record.
+   private synchronized long append(byte type, byte[] payload) throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length + 4);
+      long       seq    = sequence + 1;
+
+      buffer.putInt(HEADER_SIZE - 4 + payload.length);
+      buffer.putLong(seq);
+      buffer.put(type);
+      buffer.put(payload);
+      CRC32 checksum = new CRC32();
+      checksum.update(buffer.array(), 4, HEADER_SIZE - 4 + payload.length);
+      buffer.putInt((int)checksum.getValue());
+      buffer.flip();
+      while (buffer.hasRemaining())
+      {
+         channel.write(buffer);
+      }
+      sequence = seq;
+      appends.incrementAndGet();
+      return(seq);
+   }
+
+
+   // Current sequence number.
+   public synchronized long sequence()
+   {
+      return(sequence);
+   }
+
+
+   // Wait until record is durable.
+   public void sync(long seq) throws IOException
+   {
+      FileChannel syncChannel;
+      long        target;
+
+      synchronized (this)
+      {
+         while ((durable < seq) && syncing)
+         {
+            try
+            {
+               wait();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted waiting for write-ahead log sync");
+            }
+         }
+         if (durable >= seq) { return; }
+         syncing = true;
+      }
+
+      // Leader: let concurrent commits join, then force once.
+      boolean synced = false;
+      target = seq;
+      try
+      {
+         if (fsyncWindow > 0)
+         {
+            try
+            {
+               Thread.sleep(fsyncWindow);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+            }
+         }
+         synchronized (this)
+         {
+            target      = sequence;
+            syncChannel = channel;
+         }
+         syncChannel.force(false);
+         syncs.incrementAndGet();
+         synced = true;
+      }
+      finally
+      {
+         synchronized (this)
+         {
+            if (synced && (target > durable))
+            {
+               durable = target;
+            }
+            syncing = false;
+            notifyAll();
+         }
+      }
+   }
+
+
+   // Discard records up to snapshot sequence number: they are in a
+   // durable snapshot. Later records are copied to a new log, which
+   // replaces the current one. Records are logged in sequence order, so
+   // the later records are those from the first one after the snapshot.
+   public synchronized void truncate(long snapshotSequence) throws IOException
+   {
+      while (syncing)
+      {
+         try
+         {
+            wait();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for write-ahead log sync");
+         }
+      }
+      String tmpName = fileName + ".tmp";
+      try (FileChannel tmp = FileChannel.open(Paths.get(tmpName), StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+         {
+            long size = channel.size();
+            try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ))
+               {
+                  long offset = after(in, size, snapshotSequence);
+                  while (offset < size)
+                  {
+                     offset += in.transferTo(offset, size - offset, tmp);
+                  }
+               }
+            tmp.force(true);
+         }
+      channel.close();
+      Files.move(Paths.get(tmpName), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      durable = sequence;
+   }
+
+
+   // Offset of the first record after sequence number, or the log size if
+   // there is none.
+   private long after(FileChannel in, long size, long snapshotSequence) throws IOException
+   {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 1);
+      long       offset = 0;
+
+      while (offset < size)
+      {
+         header.clear();
+         while (header.hasRemaining())
+         {
+            if (in.read(header, offset + header.position()) < 0) { return(size); }
+         }
+         header.flip();
+         int  length = header.getInt();
+         long seq    = header.getLong();
+         if (seq > snapshotSequence) { return(offset); }
+         offset += 4 + length + 4;
+      }
+      return(size);
+   }
+
+
+   // Close log.
+   public synchronized void close()
+   {
+      try
+      {
+         if (channel != null)
+         {
+            channel.force(false);
+            channel.close();
+         }
+      }
+      catch (IOException e)
+      {
+         logger.warning("Cannot close write-ahead log " + fileName + ": " + e.getMessage());
+      }
+      channel = null;
+   }
+
+
+   // Statistics.
+   public String stats()
+   {
+      long a = appends.get();
+      long s = syncs.get();
+      long g = 0;
+
+      if (s > 0) { g = a / s; }
+      return("Write-ahead log: appends=" + a + ", fsyncs=" + s + ", mean group size=" + g);
+   }
+}
@@ -0,0 +1,162 @@
+// For conditions of distribution and use, see copyright notice in Readme.
+
+/**
+ * Histogram.
+ * Log-linear buckets: exact below 128, then 64 sub-buckets per power of two
+ * (under 1.6% relative error). Recording is lock-free.
+ */
+
+package com.dialectek.coinspermia.shared;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram
+{
+   // Sub-buckets per power of two.
+   private static final int SUB_BUCKET_BITS = 6;
+   private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+   private static final int NUM_BUCKETS     = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+   // Name and units.
+   public String name;
+   public String units;
+
+   // Counts.
+   private AtomicLongArray buckets;
+   private AtomicLong      count;
+   private AtomicLong      sum;
+   private AtomicLong      max;
+
+   // Constructor.
+   public Histogram(String name, String units)
+   {
+      this.name  = name;
+      this.units = units;
+      buckets    = new AtomicLongArray(NUM_BUCKETS);
+      count      = new AtomicLong();
+      sum        = new AtomicLong();
+      max        = new AtomicLong();
+   }
+
+
+   // Record value.
+   public void record(long value)
+   {
+      if (value < 0) { value = 0; }
+      buckets.incrementAndGet(bucketIndex(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long m = max.get();
+      while ((value > m) && !max.compareAndSet(m, value))
+      {
+         m = max.get();
+      }
+   }
+
+
+   // Number of values.
+   public long count()
+   {
+      return(count.get());
+   }
+
+
+   // Mean value.
+   public double mean()
+   {
+      long n = count.get();
+
+      if (n == 0) { return(0.0); }
+      return((double)sum.get() / (double)n);
+   }
+
+
+   // Maximum value.
+   public long max()
+   {
+      return(max.get());
+   }
+
+
+   // Value at percentile (0-100).
+   public long percentile(double percentile)
+   {
+      long n = count.get();
+
+      if (n == 0) { return(0); }
+      long rank = (long)Math.ceil((percentile / 100.0) * (double)n);
+      if (rank < 1) { rank = 1; }
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++)
+      {
+         seen += buckets.get(i);
+         if (seen >= rank)
+         {
+            return(Math.min(bucketValue(i), max.get()));
+         }
+      }
+      return(max.get());
+   }
+
+
+   // Number of values in bucket.
+   public long bucketCount(int index)
+   {
+      return(buckets.get(index));
+   }
+
+
+   // Number of buckets.
+   public int numBuckets()
+   {
+      return(NUM_BUCKETS);
+   }
+
+
+   // Clear.
+   public void reset()
+   {
+      for (int i = 0; i < NUM_BUCKETS; i++)
+      {
+         buckets.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+   }
+
+
+   // Bucket index of value.
+   public static int bucketIndex(long value)
+   {
+      if (value < (SUB_BUCKETS << 1))
+      {
+         return((int)value);
+      }
+      int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+      return(((shift + 1) * SUB_BUCKETS) + (int)((value >>> shift) - SUB_BUCKETS));
+   }
+
+
+   // Highest value in bucket.
+   public static long bucketValue(int index)
+   {
+      if (index < (SUB_BUCKETS << 1))
+      {
+         return(index);
+      }
+      int  shift = (index / SUB_BUCKETS) - 1;
+      long sub   = (index % SUB_BUCKETS) + SUB_BUCKETS;
+      return(((sub + 1) << shift) - 1);
+   }
+
+
+   // Summary.
+   public String toString()
+   {
+      return(name + ": n=" + count() + ", mean=" + String.format("%.1f", mean()) + units +
+             ", p50=" + percentile(50.0) + units + ", p99=" + percentile(99.0) + units +
+             ", max=" + max() + units);
+   }
+}
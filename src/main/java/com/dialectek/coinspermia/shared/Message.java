@@ -21,6 +21,8 @@ public class Message
 
    /**
     * Lock/unlock transaction.
+    * A lock request carries its quorum's lock round, which the response
+    * echoes.
     */
    public static final int LOCK_REQUEST    = 3;
    public static final int LOCK_RESPONSE   = 4;
@@ -29,6 +31,9 @@ public class Message
 
    /**
     * Commit transaction.
+    * A commit response carries the ids of commits sent by id that the
+    * receiver no longer has cached, asking the sender to resend them in
+    * full.
     */
    public static final int COMMIT_REQUEST  = 7;
    public static final int COMMIT_RESPONSE = 8;
@@ -55,36 +60,72 @@ public class Message
    public static final int CLEAR_LEDGER_REQUEST  = 17;
    public static final int CLEAR_LEDGER_RESPONSE = 18;
 
-   public int               type;
-   public String            sender;
-   public UUID              id;
-   public Transaction       transaction;
-   public ArrayList<String> peers;
-   public int               result;
-   public String            password;
+   /**
+    * Commit batch of transactions: the ids list the batch in commit order,
+    * and the transactions are those carried in full, in the same order; the
+    * receiver has the others cached.
+    */
+   public static final int COMMIT_BATCH_REQUEST = 19;
+
+   /**
+    * Ledger anti-entropy: Merkle tree node digests, and the UTXOs and
+    * spent tombstones of differing buckets as two transactions' outputs.
+    */
+   public static final int LEDGER_SYNC_REQUEST  = 20;
+   public static final int LEDGER_SYNC_RESPONSE = 21;
+
+   /**
+    * Ledger snapshot transfer: the response is streamed as chunks of
+    * UTXOs, as transaction outputs, ending with a response without one.
+    */
+   public static final int SNAPSHOT_REQUEST  = 22;
+   public static final int SNAPSHOT_RESPONSE = 23;
+
+   public int                    type;
+   public String                 sender;
+   public UUID                   id;
+   public Transaction            transaction;
+   public ArrayList<String>      peers;
+   public int                    result;
+   public String                 password;
+   public ArrayList<Transaction> transactions;
+   public ArrayList<UUID>        ids;
+   public int[]                  treeNodes;
+   public long[]                 digests;
+   public int                    round;
 
    // Constructors.
    public Message()
    {
-      type        = -1;
-      sender      = null;
-      id          = null;
-      transaction = null;
-      peers       = null;
-      result      = Parameters.SUCCESS;
-      password    = null;
+      type         = -1;
+      sender       = null;
+      id           = null;
+      transaction  = null;
+      peers        = null;
+      result       = Parameters.SUCCESS;
+      password     = null;
+      transactions = null;
+      ids          = null;
+      treeNodes    = null;
+      digests      = null;
+      round        = 0;
    }
 
 
    public Message(int type)
    {
-      this.type   = type;
-      sender      = null;
-      id          = null;
-      transaction = null;
-      peers       = null;
-      result      = Parameters.SUCCESS;
-      password    = null;
+      this.type    = type;
+      sender       = null;
+      id           = null;
+      transaction  = null;
+      peers        = null;
+      result       = Parameters.SUCCESS;
+      password     = null;
+      transactions = null;
+      ids          = null;
+      treeNodes    = null;
+      digests      = null;
+      round        = 0;
    }
 
 
@@ -94,6 +135,9 @@ public class Message
       if ((type == LOCK_REQUEST) ||
           (type == UNLOCK_REQUEST) ||
           (type == COMMIT_REQUEST) ||
+          (type == COMMIT_BATCH_REQUEST) ||
+          (type == LEDGER_SYNC_REQUEST) ||
+          (type == SNAPSHOT_REQUEST) ||
           (type == CONNECTION_REQUEST) ||
           (type == LOAD_LEDGER_REQUEST) ||
           (type == SAVE_LEDGER_REQUEST) ||
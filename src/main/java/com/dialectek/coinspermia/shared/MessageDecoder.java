@@ -8,7 +8,10 @@ import javax.json.JsonObject;
 import javax.websocket.DecodeException;
 import javax.websocket.Decoder;
 import javax.websocket.EndpointConfig;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.UUID;
 
@@ -77,6 +80,7 @@ public class MessageDecoder implements Decoder.Text<Message>
          }
       }
       message.result = jsonObject.getInt("result");
+      message.round  = jsonObject.getInt("round", 0);
       try
       {
          message.password = jsonObject.getString("password");
@@ -85,6 +89,166 @@ public class MessageDecoder implements Decoder.Text<Message>
       {
          message.password = null;
       }
+      JsonArray transactionArray = jsonObject.getJsonArray("transactions");
+      if (transactionArray != null)
+      {
+         message.transactions = new ArrayList<Transaction>();
+         for (int i = 0; i < transactionArray.size(); i++)
+         {
+            message.transactions.add(Transaction.fromJson(transactionArray.getJsonObject(i)));
+         }
+      }
+      JsonArray idArray = jsonObject.getJsonArray("ids");
+      if (idArray != null)
+      {
+         message.ids = new ArrayList<UUID>();
+         for (int i = 0; i < idArray.size(); i++)
+         {
+            message.ids.add(UUID.fromString(idArray.getString(i)));
+         }
+      }
+      JsonArray nodeArray   = jsonObject.getJsonArray("treeNodes");
+      JsonArray digestArray = jsonObject.getJsonArray("digests");
+      if ((nodeArray != null) && (digestArray != null))
+      {
+         int n = Math.min(nodeArray.size(), digestArray.size());
+         message.treeNodes = new int[n];
+         message.digests   = new long[n];
+         for (int i = 0; i < n; i++)
+         {
+            message.treeNodes[i] = nodeArray.getInt(i);
+            message.digests[i]   = digestArray.getJsonNumber(i).longValue();
+         }
+      }
       return(message);
    }
+
+
+   // Binary decoder.
+   public static class Binary implements Decoder.Binary<Message>
+   {
+      @Override
+      public void init(final EndpointConfig config)
+      {
+      }
+
+
+      @Override
+      public void destroy()
+      {
+      }
+
+
+      @Override
+      public Message decode(final ByteBuffer buffer) throws DecodeException
+      {
+         return(fromByteBuffer(buffer));
+      }
+
+
+      @Override
+      public boolean willDecode(final ByteBuffer buffer)
+      {
+         return((buffer.remaining() > 0) && (buffer.get(buffer.position()) == MessageEncoder.Binary.VERSION));
+      }
+
+
+      public static Message fromByteBuffer(final ByteBuffer buffer) throws DecodeException
+      {
+         Message message = new Message();
+         byte[]  bytes;
+         int     offset;
+
+         if (buffer.hasArray())
+         {
+            bytes  = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+         }
+         else
+         {
+            bytes  = new byte[buffer.remaining()];
+            offset = 0;
+            buffer.duplicate().get(bytes);
+         }
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, buffer.remaining()));
+         try
+         {
+            if (in.readByte() != MessageEncoder.Binary.VERSION)
+            {
+               throw new DecodeException(buffer, "Unknown binary message version");
+            }
+            int flags = in.readByte();
+            message.type   = in.readInt();
+            message.result = in.readInt();
+            if ((flags & MessageEncoder.Binary.SENDER) != 0)
+            {
+               message.sender = in.readUTF();
+            }
+            if ((flags & MessageEncoder.Binary.ID) != 0)
+            {
+               message.id = new UUID(in.readLong(), in.readLong());
+            }
+            if ((flags & MessageEncoder.Binary.TRANSACTION) != 0)
+            {
+               message.transaction = Transaction.read(in);
+            }
+            if ((flags & MessageEncoder.Binary.PEERS) != 0)
+            {
+               int n = in.readInt();
+               message.peers = new ArrayList<String>();
+               for (int i = 0; i < n; i++)
+               {
+                  message.peers.add(in.readUTF());
+               }
+            }
+            if ((flags & MessageEncoder.Binary.PASSWORD) != 0)
+            {
+               message.password = in.readUTF();
+            }
+            if ((flags & MessageEncoder.Binary.BATCH) != 0)
+            {
+               int n = in.readInt();
+               message.transactions = new ArrayList<Transaction>();
+               for (int i = 0; i < n; i++)
+               {
+                  message.transactions.add(Transaction.read(in));
+               }
+               n           = in.readInt();
+               message.ids = new ArrayList<UUID>();
+               for (int i = 0; i < n; i++)
+               {
+                  message.ids.add(new UUID(in.readLong(), in.readLong()));
+               }
+            }
+            if ((flags & MessageEncoder.Binary.TREE) != 0)
+            {
+               int n = in.readInt();
+               if ((n < 0) || (n > (in.available() / 12)))
+               {
+                  throw new DecodeException(buffer, "Invalid tree node count " + n);
+               }
+               message.treeNodes = new int[n];
+               message.digests   = new long[n];
+               for (int i = 0; i < n; i++)
+               {
+                  message.treeNodes[i] = in.readInt();
+                  message.digests[i]   = in.readLong();
+               }
+            }
+            if ((flags & MessageEncoder.Binary.ROUND) != 0)
+            {
+               message.round = in.readInt();
+            }
+         }
+         catch (DecodeException e)
+         {
+            throw e;
+         }
+         catch (Exception e)
+         {
+            throw new DecodeException(buffer, "Cannot decode message: " + e.getMessage());
+         }
+         return(message);
+      }
+   }
 }
@@ -2,6 +2,11 @@
 
 package com.dialectek.coinspermia.shared;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
@@ -9,6 +14,7 @@ import javax.json.JsonObjectBuilder;
 import javax.websocket.EncodeException;
 import javax.websocket.Encoder;
 import javax.websocket.EndpointConfig;
+import javax.websocket.Session;
 
 public class MessageEncoder implements Encoder.Text<Message>
 {
@@ -58,11 +64,210 @@ public class MessageEncoder implements Encoder.Text<Message>
          builder = builder.add("peers", peerArray);
       }
       builder = builder.add("result", message.result);
+      if (message.round != 0)
+      {
+         builder = builder.add("round", message.round);
+      }
       if (message.password != null)
       {
          builder = builder.add("password", message.password);
       }
+      if (message.transactions != null)
+      {
+         JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+         for (Transaction transaction : message.transactions)
+         {
+            arrayBuilder.add(transaction.toJson());
+         }
+         builder = builder.add("transactions", arrayBuilder.build());
+      }
+      if (message.ids != null)
+      {
+         JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+         for (UUID id : message.ids)
+         {
+            arrayBuilder.add(id.toString());
+         }
+         builder = builder.add("ids", arrayBuilder.build());
+      }
+      if (message.treeNodes != null)
+      {
+         JsonArrayBuilder nodeBuilder   = Json.createArrayBuilder();
+         JsonArrayBuilder digestBuilder = Json.createArrayBuilder();
+         for (int i = 0; i < message.treeNodes.length; i++)
+         {
+            nodeBuilder.add(message.treeNodes[i]);
+            digestBuilder.add(message.digests[i]);
+         }
+         builder = builder.add("treeNodes", nodeBuilder.build());
+         builder = builder.add("digests", digestBuilder.build());
+      }
       String json = builder.build().toString();
       return(json);
    }
+
+
+   // Send message in the session's negotiated format: binary between
+   // nodes that both support it, Json otherwise.
+   public static void send(Session session, Message message) throws Exception
+   {
+      synchronized (session)
+      {
+         if (isBinary(session))
+         {
+            session.getBasicRemote().sendBinary(Binary.toByteBuffer(message));
+         }
+         else
+         {
+            session.getBasicRemote().sendObject(message);
+         }
+      }
+   }
+
+
+   // Has session negotiated the binary codec?
+   public static boolean isBinary(Session session)
+   {
+      return(Boolean.TRUE.equals(session.getUserProperties().get(Parameters.BINARY_CODEC_PROPERTY)));
+   }
+
+
+   // Mark session as using the binary codec.
+   public static void setBinary(Session session)
+   {
+      session.getUserProperties().put(Parameters.BINARY_CODEC_PROPERTY, Boolean.TRUE);
+   }
+
+
+   // Binary encoder.
+   // Fields present are flagged in a header byte; strings are modified
+   // UTF-8, keys and signatures are length-prefixed raw bytes and coins
+   // are fixed-width floats.
+   public static class Binary implements Encoder.Binary<Message>
+   {
+      // Format version and field flags.
+      public static final byte VERSION     = 1;
+      public static final int  SENDER      = 1;
+      public static final int  ID          = 2;
+      public static final int  TRANSACTION = 4;
+      public static final int  PEERS       = 8;
+      public static final int  PASSWORD    = 16;
+      public static final int  BATCH       = 32;
+      public static final int  TREE        = 64;
+      public static final int  ROUND       = 128;
+
+      @Override
+      public void init(final EndpointConfig config)
+      {
+      }
+
+
+      @Override
+      public void destroy()
+      {
+      }
+
+
+      @Override
+      public ByteBuffer encode(final Message message) throws EncodeException
+      {
+         return(toByteBuffer(message));
+      }
+
+
+      public static ByteBuffer toByteBuffer(final Message message) throws EncodeException
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+         DataOutputStream      out   = new DataOutputStream(bytes);
+         int                   flags = 0;
+
+         if (message.sender != null) { flags |= SENDER; }
+         if (message.id != null) { flags |= ID; }
+         if (message.transaction != null) { flags |= TRANSACTION; }
+         if (message.peers != null) { flags |= PEERS; }
+         if (message.password != null) { flags |= PASSWORD; }
+         if ((message.transactions != null) || (message.ids != null)) { flags |= BATCH; }
+         if (message.treeNodes != null) { flags |= TREE; }
+         if (message.round != 0) { flags |= ROUND; }
+         try
+         {
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            out.writeInt(message.type);
+            out.writeInt(message.result);
+            if (message.sender != null)
+            {
+               out.writeUTF(message.sender);
+            }
+            if (message.id != null)
+            {
+               out.writeLong(message.id.getMostSignificantBits());
+               out.writeLong(message.id.getLeastSignificantBits());
+            }
+            if (message.transaction != null)
+            {
+               message.transaction.write(out);
+            }
+            if (message.peers != null)
+            {
+               out.writeInt(message.peers.size());
+               for (String peer : message.peers)
+               {
+                  out.writeUTF(peer);
+               }
+            }
+            if (message.password != null)
+            {
+               out.writeUTF(message.password);
+            }
+            if ((flags & BATCH) != 0)
+            {
+               if (message.transactions != null)
+               {
+                  out.writeInt(message.transactions.size());
+                  for (Transaction transaction : message.transactions)
+                  {
+                     transaction.write(out);
+                  }
+               }
+               else
+               {
+                  out.writeInt(0);
+               }
+               if (message.ids != null)
+               {
+                  out.writeInt(message.ids.size());
+                  for (UUID id : message.ids)
+                  {
+                     out.writeLong(id.getMostSignificantBits());
+                     out.writeLong(id.getLeastSignificantBits());
+                  }
+               }
+               else
+               {
+                  out.writeInt(0);
+               }
+            }
+            if (message.treeNodes != null)
+            {
+               out.writeInt(message.treeNodes.length);
+               for (int i = 0; i < message.treeNodes.length; i++)
+               {
+                  out.writeInt(message.treeNodes[i]);
+                  out.writeLong(message.digests[i]);
+               }
+            }
+            if (message.round != 0)
+            {
+               out.writeInt(message.round);
+            }
+            out.flush();
+         }
+         catch (Exception e)
+         {
+            throw new EncodeException(message, "Cannot encode message: " + e.getMessage());
+         }
+         return(ByteBuffer.wrap(bytes.toByteArray()));
+      }
+   }
 }
@@ -28,6 +28,15 @@ public interface Parameters
     */
    public static final String WEBSOCKET_PROTOCOL = "wss";
 
+   /**
+    * Binary message codec negotiation.
+    * A node connecting to a peer adds the query to the URI; the peer then
+    * answers in binary, and the node switches to binary once it receives
+    * a binary message. Other sessions, such as the client's, use Json.
+    */
+   public static final String BINARY_CODEC_QUERY    = "codec=binary";
+   public static final String BINARY_CODEC_PROPERTY = "binaryCodec";
+
    /**
     * Relative URI.
     */
@@ -38,6 +47,57 @@ public interface Parameters
     */
    public static final String LEDGER_FILE = "ledger.json";
 
+   /**
+    * Ledger write-ahead log file.
+    */
+   public static final String WAL_FILE = "ledger.wal";
+
+   /**
+    * Default write-ahead log group commit window (ms):
+    * commits arriving within the window share one fsync.
+    * With no window, commits arriving during an fsync share the next one.
+    */
+   public static final int DEFAULT_WAL_FSYNC_WINDOW = 0;
+
+   /**
+    * Default commit gossip fanout: peers a node forwards each newly seen
+    * commit to. Zero forwards to all connected peers.
+    */
+   public static final int DEFAULT_GOSSIP_FANOUT = 0;
+
+   /**
+    * Commit gossip seen transaction filter: ids per generation and
+    * false positive rate. A false positive drops a commit at that node.
+    */
+   static final int    GOSSIP_SEEN_FILTER_CAPACITY            = 100000;
+   static final double GOSSIP_SEEN_FILTER_FALSE_POSITIVE_RATE = 1.0e-6;
+
+   /**
+    * Default commit batch linger time (ms): how long a commit waits for
+    * others bound for the same peer. Zero sends each commit on its own.
+    * Rounded up to the timeout scheduler tick.
+    */
+   public static final int DEFAULT_COMMIT_BATCH_LINGER = 10;
+
+   /**
+    * Default lock hedge percentile: a quorum member that has not voted
+    * by this percentile of member vote times has its slot offered to a
+    * spare peer. Zero disables hedging.
+    */
+   public static final int DEFAULT_LOCK_HEDGE_PERCENTILE = 0;
+
+   /**
+    * Lock hedging: minimum deadline (ms), and member votes recorded before
+    * the percentile is trusted.
+    */
+   static final int LOCK_HEDGE_MIN_DELAY   = 20;
+   static final int LOCK_HEDGE_MIN_SAMPLES = 100;
+
+   /**
+    * Maximum commits per batch: a full batch is sent at once.
+    */
+   static final int COMMIT_BATCH_MAX_SIZE = 128;
+
    /**
     * Wallet file.
     */
@@ -82,11 +142,127 @@ public interface Parameters
    static final int TRANSACTION_RETRY_MIN_WAIT = 1000;
    static final int TRANSACTION_RETRY_MAX_WAIT = 5000;
 
+   /**
+    * Client pending transactions: session property, response time-out,
+    * which allows for the node's own time-out, and time-out sweep
+    * interval (ms).
+    */
+   static final String PENDING_TRANSACTIONS_PROPERTY = "pendingTransactions";
+   static final int    CLIENT_TRANSACTION_TIME_OUT   = TRANSACTION_TIME_OUT * 2;
+   static final int    PENDING_TRANSACTIONS_SWEEP    = 1000;
+
+   /**
+    * In-flight transaction cache time-out (ms): quorum members keep
+    * transactions they have been asked to lock for this long, so later
+    * protocol rounds can refer to them by id.
+    */
+   static final int TRANSACTION_CACHE_TIME_OUT = TRANSACTION_TIME_OUT * 2;
+
+   /**
+    * Commit resend time-out (ms): a node keeps the commits it gossips by id
+    * this long, to resend them in full to a peer whose cached copy expired.
+    */
+   static final int COMMIT_RESEND_TIME_OUT = TRANSACTION_CACHE_TIME_OUT;
+
+   /**
+    * Ledger anti-entropy: UTXO Merkle tree buckets (log2), tree levels
+    * descended per round trip, buckets reconciled per round trip and how
+    * long spent UTXO tombstones are kept (ms). A sync runs with a random
+    * peer every peer refresh.
+    */
+   static final int ANTI_ENTROPY_BUCKET_BITS        = 12;
+   static final int ANTI_ENTROPY_LEVELS_PER_ROUND   = 4;
+   static final int ANTI_ENTROPY_MAX_BUCKETS        = 256;
+   static final int ANTI_ENTROPY_TOMBSTONE_TIME_OUT = 600000;
+
+   /**
+    * Ledger snapshot transfer: UTXOs per chunk, time-out (ms) after which
+    * a joining node gives up on a transfer and retries later, and threads
+    * serving snapshots with the requests that may wait for them. A peer
+    * is served one snapshot at a time; requests beyond these are refused.
+    */
+   static final int SNAPSHOT_CHUNK_SIZE           = 1024;
+   static final int SNAPSHOT_TRANSFER_TIME_OUT    = 120000;
+   static final int SNAPSHOT_SERVE_THREADS        = 2;
+   static final int SNAPSHOT_SERVE_QUEUE_CAPACITY = 4;
+
+   /**
+    * Peer health: averaging weight of a new round trip time or error
+    * sample, round trip time over the median at which a peer is slow,
+    * minimum quorum selection weight, and time (ms) after which a peer's
+    * measurements are forgotten.
+    */
+   static final double PEER_HEALTH_EWMA_ALPHA  = 0.2;
+   static final double PEER_HEALTH_SLOW_FACTOR = 3.0;
+   static final double PEER_HEALTH_MIN_WEIGHT  = 0.001;
+   static final int    PEER_HEALTH_STALE_TIME  = 60000;
+
+   /**
+    * Ledger lock stripes: transactions on UTXOs in different stripes
+    * proceed concurrently.
+    */
+   static final int LEDGER_LOCK_STRIPES = 256;
+
+   /**
+    * Verified signature cache size.
+    */
+   static final int SIGNATURE_CACHE_SIZE = 10000;
+
+   /**
+    * Timeout scheduler tick (ms), wheel size and worker threads.
+    */
+   static final int TIMEOUT_TICK           = 10;
+   static final int TIMEOUT_WHEEL_SIZE     = 512;
+   static final int TIMEOUT_WORKER_THREADS = 4;
+
    /**
     * Peer refresh frequency (ms).
     */
    public static final int PEER_REFRESH_FREQ = 10000;
 
+   /**
+    * Pooled peer session idle time-out (ms).
+    */
+   public static final int PEER_SESSION_IDLE_TIME_OUT = 60000;
+
+   /**
+    * Peer reconnect minimum and maximum back-off times (ms).
+    */
+   public static final int PEER_RECONNECT_MIN_WAIT = 500;
+   public static final int PEER_RECONNECT_MAX_WAIT = 30000;
+
+   /**
+    * Endpoint message workers: peer lanes and their queue capacity, client
+    * worker threads and their queue capacity, and the peer backlog at which
+    * client requests are refused as busy.
+    */
+   static final int PEER_WORKER_LANES            = 8;
+   static final int PEER_WORKER_QUEUE_CAPACITY   = 4096;
+   static final int CLIENT_WORKER_THREADS        = 4;
+   static final int CLIENT_WORKER_QUEUE_CAPACITY = 256;
+   static final int PEER_BACKLOG_BUSY_THRESHOLD  = 1024;
+
+   /**
+    * Client fair queuing: queued requests per client session, and credit
+    * per round robin visit (a transaction costs 1 plus its inputs).
+    */
+   static final int CLIENT_SESSION_QUEUE_CAPACITY = 32;
+   static final int CLIENT_SCHEDULER_QUANTUM      = 4;
+
+   /**
+    * Client rate limits (requests/s) and bursts, per session and per
+    * transaction input public key.
+    */
+   static final double CLIENT_SESSION_RATE  = 100.0;
+   static final double CLIENT_SESSION_BURST = 200.0;
+   static final double CLIENT_KEY_RATE      = 10.0;
+   static final double CLIENT_KEY_BURST     = 20.0;
+
+   /**
+    * Peer I/O threads: concurrent outbound peer sends.
+    */
+   public static final int PEER_IO_THREADS = 16;
+
    /**
     * Default random number seed.
     */
@@ -106,4 +282,6 @@ public interface Parameters
    public static final int LOCK_FAIL = 3;
    public static final int DUPLICATE = 4;
    public static final int TIME_OUT  = 5;
+   public static final int UNKNOWN   = 6;
+   public static final int BUSY      = 7;
 };
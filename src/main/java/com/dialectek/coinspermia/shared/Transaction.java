@@ -6,6 +6,9 @@
 
 package com.dialectek.coinspermia.shared;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Base64;
@@ -16,6 +19,7 @@ import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 
 import com.dialectek.coinspermia.shared.Utils;
@@ -29,6 +33,9 @@ public class Transaction
 
    public int type;
 
+   // Maximum binary key or signature length.
+   private static final int MAX_BYTES = 65536;
+
    // Inputs.
    public class Input
    {
@@ -43,16 +50,51 @@ public class Transaction
    public ArrayList<Input> inputs;
 
    // Outputs.
+   // The encoded public key and its hash are computed once on construction.
+   // The version is set by the ledger on its UTXOs and spent tombstones: the
+   // number of commits applied at the key. It is zero in transactions.
    public class Output
    {
       public PublicKey publicKey;
       public float     coins;
       public UUID      id;
+      public byte[]    encodedKey;
+      public int       publicKeyHash;
+      public int       version;
       public Output(PublicKey publicKey, float coins)
       {
          this.publicKey = publicKey;
          this.coins     = coins;
          id             = UUID.randomUUID();
+         version        = 0;
+         if (publicKey != null)
+         {
+            encodedKey    = publicKey.getEncoded();
+            publicKeyHash = Utils.hashEncodedKey(encodedKey);
+         }
+         else
+         {
+            encodedKey    = null;
+            publicKeyHash = -1;
+         }
+      }
+
+
+      private Output(Output output)
+      {
+         publicKey     = output.publicKey;
+         coins         = output.coins;
+         id            = output.id;
+         encodedKey    = output.encodedKey;
+         publicKeyHash = output.publicKeyHash;
+         version       = output.version;
+      }
+
+
+      // Copy of output, for holders that change it.
+      public Output copy()
+      {
+         return(new Output(this));
       }
    }
    public ArrayList<Output> outputs;
@@ -172,19 +214,23 @@ public class Transaction
       for (Output output : outputs)
       {
          String publicKeyString = "";
-         try
+         if (output.encodedKey != null)
          {
-            publicKeyString = Utils.stringFromPublicKey(output.publicKey);
+            publicKeyString = Base64.getEncoder().encodeToString(output.encodedKey);
          }
-         catch (Exception e)
+         else
          {
             logger.severe("Cannot convert publicKey to string");
          }
-         arrayBuilder.add(Json.createObjectBuilder()
-                             .add("publicKey", publicKeyString)
-                             .add("coins", output.coins + "")
-                             .add("id", output.id.toString())
-                             .build());
+         JsonObjectBuilder outputBuilder = Json.createObjectBuilder()
+                                              .add("publicKey", publicKeyString)
+                                              .add("coins", output.coins + "")
+                                              .add("id", output.id.toString());
+         if (output.version != 0)
+         {
+            outputBuilder.add("version", output.version);
+         }
+         arrayBuilder.add(outputBuilder.build());
       }
       JsonArray outputArray = arrayBuilder.build();
       return(Json.createObjectBuilder()
@@ -196,6 +242,99 @@ public class Transaction
    }
 
 
+   // Write transaction in binary form.
+   public void write(DataOutput out) throws IOException
+   {
+      out.writeInt(type);
+      out.writeLong(id.getMostSignificantBits());
+      out.writeLong(id.getLeastSignificantBits());
+      out.writeInt(inputs.size());
+      for (Input input : inputs)
+      {
+         out.writeInt(input.publicKeyHash);
+         writeBytes(out, input.signature);
+      }
+      out.writeInt(outputs.size());
+      for (Output output : outputs)
+      {
+         writeBytes(out, output.encodedKey);
+         out.writeFloat(output.coins);
+         out.writeLong(output.id.getMostSignificantBits());
+         out.writeLong(output.id.getLeastSignificantBits());
+         out.writeInt(output.version);
+      }
+   }
+
+
+   // Read transaction in binary form.
+   public static Transaction read(DataInput in) throws IOException
+   {
+      Transaction tx = new Transaction();
+
+      tx.type = in.readInt();
+      tx.id   = new UUID(in.readLong(), in.readLong());
+      int n = in.readInt();
+      for (int i = 0; i < n; i++)
+      {
+         int publicKeyHash = in.readInt();
+         tx.addInput(publicKeyHash, readBytes(in));
+      }
+      n = in.readInt();
+      for (int i = 0; i < n; i++)
+      {
+         byte[]    encodedKey = readBytes(in);
+         PublicKey publicKey  = null;
+         if (encodedKey != null)
+         {
+            try
+            {
+               publicKey = Utils.bytesToPublicKey(encodedKey);
+            }
+            catch (Exception e)
+            {
+               throw new IOException("Cannot convert bytes to publicKey");
+            }
+         }
+         tx.addOutput(publicKey, in.readFloat());
+         Output output = tx.outputs.get(tx.outputs.size() - 1);
+         output.id      = new UUID(in.readLong(), in.readLong());
+         output.version = in.readInt();
+      }
+      return(tx);
+   }
+
+
+   // Write length-prefixed bytes: length -1 is null.
+   private static void writeBytes(DataOutput out, byte[] bytes) throws IOException
+   {
+      if (bytes == null)
+      {
+         out.writeInt(-1);
+      }
+      else
+      {
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+   }
+
+
+   // Read length-prefixed bytes.
+   private static byte[] readBytes(DataInput in) throws IOException
+   {
+      int length = in.readInt();
+
+      if (length < 0) { return(null); }
+      if (length > MAX_BYTES)
+      {
+         throw new IOException("Invalid length " + length);
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return(bytes);
+   }
+
+
    // Transaction from Json.
    public static Transaction fromJson(JsonObject txObject)
    {
@@ -226,7 +365,9 @@ public class Transaction
          float coins = Float.parseFloat(outputObject.getString("coins"));
          UUID  id    = UUID.fromString(outputObject.getString("id"));
          tx.addOutput(publicKey, coins);
-         tx.outputs.get(tx.outputs.size() - 1).id = id;
+         Output output = tx.outputs.get(tx.outputs.size() - 1);
+         output.id      = id;
+         output.version = outputObject.getInt("version", 0);
       }
       tx.id = UUID.fromString(txObject.getString("id"));
       return(tx);
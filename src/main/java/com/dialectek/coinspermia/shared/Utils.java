@@ -38,6 +38,21 @@ public class Utils implements Parameters
    // Logging.
    private static Logger logger = Logger.getLogger(Utils.class .getName());
 
+   // Per thread signature instances: Signature is not thread-safe and
+   // getInstance is a provider lookup, so each thread reuses its own.
+   private static ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() ->
+   {
+      try
+      {
+         return(Signature.getInstance("SHA256withRSA"));
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         logger.severe(e.getMessage());
+      }
+      return(null);
+   });
+
    // Get local address.
    public static String getLocalAddress() throws Exception
    {
@@ -137,23 +152,17 @@ public class Utils implements Parameters
    // Sign message.
    public static byte[] signMessage(PrivateKey privKey, byte[] message)
    {
-      Signature sig = null;
+      Signature sig = signatures.get();
 
-      try
-      {
-         sig = Signature.getInstance("SHA256withRSA");
-      }
-      catch (NoSuchAlgorithmException e)
-      {
-         logger.severe(e.getMessage());
-      }
       try
       {
          sig.initSign(privKey);
       }
       catch (InvalidKeyException e)
       {
+         // Do not fall through to a reused instance still holding a previous key.
          logger.severe(e.getMessage());
+         return(null);
       }
       try
       {
@@ -171,23 +180,17 @@ public class Utils implements Parameters
    // Verify signature.
    public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature)
    {
-      Signature sig = null;
+      Signature sig = signatures.get();
 
-      try
-      {
-         sig = Signature.getInstance("SHA256withRSA");
-      }
-      catch (NoSuchAlgorithmException e)
-      {
-         logger.severe(e.getMessage());
-      }
       try
       {
          sig.initVerify(pubKey);
       }
       catch (InvalidKeyException e)
       {
+         // Do not fall through to a reused instance still holding a previous key.
          logger.severe(e.getMessage());
+         return(false);
       }
       try
       {
@@ -222,6 +225,14 @@ public class Utils implements Parameters
    }
 
 
+   public static PublicKey bytesToPublicKey(byte[] encodedKey) throws GeneralSecurityException
+   {
+      X509EncodedKeySpec spec = new X509EncodedKeySpec(encodedKey);
+      KeyFactory         fact = KeyFactory.getInstance("RSA");
+      return(fact.generatePublic(spec));
+   }
+
+
    public static String stringFromPrivateKey(PrivateKey priv) throws GeneralSecurityException
    {
       KeyFactory          fact = KeyFactory.getInstance("RSA");
@@ -251,17 +262,22 @@ public class Utils implements Parameters
 
 
    // Hash public key.
+   // The X.509 encoding is the key's own encoding, so no KeyFactory is needed.
    public static int hashPublicKey(PublicKey key)
    {
-      try
+      if (key == null)
       {
-         return(stringFromPublicKey(key).hashCode());
+         logger.severe("Cannot hash null publicKey");
+         return(-1);
       }
-      catch (GeneralSecurityException e)
-      {
-         logger.severe(e.getMessage());
-      }
-      return(-1);
+      return(hashEncodedKey(key.getEncoded()));
+   }
+
+
+   // Hash encoded public key.
+   public static int hashEncodedKey(byte[] encodedKey)
+   {
+      return(Base64.getEncoder().encodeToString(encodedKey).hashCode());
    }
 
 
@@ -366,9 +382,51 @@ public class Utils implements Parameters
    }
 
 
+   // Lanczos approximation coefficients (g=7).
+   private static final double[] LANCZOS =
+   {
+      0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+      771.32342877765313, -176.61502916214059, 12.507343278686905,
+      -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7
+   };
+
+   // Log gamma, for x >= 1.
+   public static double logGamma(double x)
+   {
+      x -= 1.0;
+      double a = LANCZOS[0];
+      double t = x + 7.5;
+      for (int i = 1; i < LANCZOS.length; i++)
+      {
+         a += LANCZOS[i] / (x + i);
+      }
+      return((0.5 * Math.log(2.0 * Math.PI)) + ((x + 0.5) * Math.log(t)) - t + Math.log(a));
+   }
+
+
    // Probability of intersecting transactions.
    // N=number of nodes, K=number of peers of node K, S=number of nodes of peer S.
+   // The ratio of binomials is computed in closed form from log gamma, and
+   // exactly when it is too close to a rounding boundary of the exact form
+   // for the closed form to be sure of the same result.
    public static float intersectionProbability(int N, int K, int S)
+   {
+      if ((N - K) < S) { return(1.0f); }
+      double logRatio = logGamma(N - K + 1) - logGamma(N - K - S + 1) - logGamma(N + 1) + logGamma(N - S + 1);
+      double error    = 1e-12 * (logGamma(N + 1) + 1.0);
+      double ratio    = Math.exp(logRatio);
+      double bound    = Math.max(1.0, Math.ceil(ratio * 1000.0));
+      if ((Math.abs(logRatio - Math.log(bound / 1000.0)) <= error) ||
+          ((bound > 1.0) && (Math.abs(logRatio - Math.log((bound - 1.0) / 1000.0)) <= error)))
+      {
+         return(exactIntersectionProbability(N, K, S));
+      }
+      return(1.0f - (float)(bound / 1000.0));
+   }
+
+
+   // Probability of intersecting transactions, with exact binomials.
+   public static float exactIntersectionProbability(int N, int K, int S)
    {
       BigDecimal numerator   = new BigDecimal(binomial((N - K), S));
       BigDecimal denominator = new BigDecimal(binomial(N, S));
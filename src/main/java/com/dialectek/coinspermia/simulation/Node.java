@@ -117,7 +117,7 @@ class Node
                {
                   // Execute transaction.
                   ledger.utxos.remove(input.publicKeyHash);
-                  ledger.utxos.put(Utils.hashPublicKey(nextOutput.publicKey), ledger.newUTXO(nextOutput));
+                  ledger.utxos.put(nextOutput.publicKeyHash, ledger.newUTXO(nextOutput));
                   if (task.type == Type.CLIENT_SERVICE)
                   {
                      // Client transaction result.
@@ -0,0 +1,271 @@
+// For conditions of distribution and use, see copyright notice in Coinspermia.java
+
+package com.dialectek.coinspermia.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import com.dialectek.coinspermia.node.Node;
+import com.dialectek.coinspermia.node.PeerHealth;
+import com.dialectek.coinspermia.shared.Histogram;
+
+/**
+ * Quorum member selection simulator.
+ * Compares lock round latency when quorum members are chosen uniformly at
+ * random and when they are chosen by peer health, with a fraction of the
+ * peers slow. A lock round lasts until the slowest member responds. Each
+ * originating node keeps its own peer health table, fed by its rounds.
+ * Also measures how often the quorums of two transactions from different
+ * nodes intersect, which the peer connection density is chosen to make
+ * likely. With hedging, a member that has not responded by a percentile of
+ * the member response times so far has its slot offered to a spare peer,
+ * and the slot is filled by whichever responds first.
+ */
+
+public class QuorumSimulator
+{
+   /** Usage. */
+   public static final String Usage =
+      "Usage: java com.dialectek.coinspermia.simulation.QuorumSimulator"
+      + "\n\t[-numNodes <number of nodes> (defaults to 1000)]"
+      + "\n\t[-origins <number of transaction originating nodes> (defaults to 100)]"
+      + "\n\t[-transactions <number of transactions> (defaults to 20000)]"
+      + "\n\t[-slowFraction <fraction of slow nodes> (defaults to 0.1)]"
+      + "\n\t[-slowFactor <slow node round trip time multiple> (defaults to 50)]"
+      + "\n\t[-hedgePercentile <member response time percentile after which to hedge> (defaults to 95)]"
+      + "\n\t[-randomSeed <random seed>]";
+
+   // Median and spread of a round trip time (ms).
+   static final double RTT_MEDIAN = 20.0;
+   static final double RTT_SIGMA  = 0.5;
+
+   // Network.
+   int       numNodes;
+   int       origins;
+   boolean[] slow;
+   double    slowFactor;
+   int       density;
+
+   // Random numbers.
+   Random randomizer;
+
+   /** Construct the simulator. */
+   public QuorumSimulator(int numNodes, int origins, double slowFraction, double slowFactor, int randomSeed)
+   {
+      this.numNodes   = numNodes;
+      this.origins    = origins;
+      this.slowFactor = slowFactor;
+      randomizer      = new Random(randomSeed);
+      slow            = new boolean[numNodes];
+      for (int i = 0; i < numNodes; i++)
+      {
+         slow[i] = (randomizer.nextDouble() < slowFraction);
+      }
+      density = Node.peerConnectionDensity(numNodes);
+   }
+
+
+   // Round trip time (ms) to node.
+   double rtt(int node)
+   {
+      double t = RTT_MEDIAN * Math.exp(RTT_SIGMA * randomizer.nextGaussian());
+
+      if (slow[node]) { t *= slowFactor; }
+      return(t);
+   }
+
+
+   // Run transactions, selecting members by health or uniformly, and
+   // hedging at the given percentile, if not zero.
+   // Returns lock round latencies; counts quorum intersections and hedges.
+   double[] run(int transactions, boolean byHealth, int hedgePercentile, int[] intersections)
+   {
+      Histogram responses = new Histogram("member response", "us");
+
+      PeerHealth[]     tables     = new PeerHealth[origins];
+      double[]         latencies  = new double[transactions];
+      HashSet<Integer> previous   = null;
+      int              prevOrigin = -1;
+
+      for (int i = 0; i < origins; i++)
+      {
+         tables[i] = new PeerHealth();
+      }
+      for (int t = 0; t < transactions; t++)
+      {
+         int               origin = randomizer.nextInt(origins);
+         ArrayList<String> peers  = new ArrayList<String>();
+         for (int i = 0; i < numNodes; i++)
+         {
+            if (i != origin) { peers.add(i + ""); }
+         }
+         ArrayList<String> members;
+         if (byHealth)
+         {
+            members = tables[origin].select(peers, density, randomizer);
+         }
+         else
+         {
+            members = new ArrayList<String>();
+            for (int i = 0; i < density; i++)
+            {
+               members.add(peers.remove(randomizer.nextInt(peers.size())));
+            }
+         }
+         HashSet<Integer> quorum = new HashSet<Integer>();
+         quorum.add(origin);
+         for (String member : members)
+         {
+            quorum.add(Integer.parseInt(member));
+         }
+         double deadline = -1.0;
+         if ((hedgePercentile > 0) &&
+             (responses.count() >= com.dialectek.coinspermia.shared.Parameters.LOCK_HEDGE_MIN_SAMPLES))
+         {
+            deadline = Math.max(com.dialectek.coinspermia.shared.Parameters.LOCK_HEDGE_MIN_DELAY,
+                                responses.percentile(hedgePercentile) / 1000.0);
+         }
+         HashSet<Integer> voters  = new HashSet<Integer>();
+         double           latency = 0.0;
+         voters.add(origin);
+         for (String member : members)
+         {
+            int    node  = Integer.parseInt(member);
+            double r     = rtt(node);
+            int    voter = node;
+            tables[origin].success(member, (long)(r * 1000.0));
+            responses.record((long)(r * 1000.0));
+            if ((deadline >= 0.0) && (r > deadline))
+            {
+               int spare;
+               do
+               {
+                  spare = randomizer.nextInt(numNodes);
+               } while (quorum.contains(spare));
+               quorum.add(spare);
+               intersections[2]++;
+               double s = deadline + rtt(spare);
+               if (s < r)
+               {
+                  r     = s;
+                  voter = spare;
+               }
+            }
+            latency = Math.max(latency, r);
+            voters.add(voter);
+         }
+         latencies[t] = latency;
+         if ((previous != null) && (prevOrigin != origin))
+         {
+            intersections[1]++;
+            for (Integer node : voters)
+            {
+               if (previous.contains(node))
+               {
+                  intersections[0]++;
+                  break;
+               }
+            }
+         }
+         previous   = voters;
+         prevOrigin = origin;
+      }
+      return(latencies);
+   }
+
+
+   // Report latencies, over all transactions and over the second half,
+   // after the health tables have warmed up.
+   static String report(String name, double[] latencies, int[] intersections)
+   {
+      return(name + ": quorum intersection=" + ((float)intersections[0] / (float)intersections[1]) +
+             ", hedges per transaction=" + ((float)intersections[2] / (float)latencies.length) +
+             "\n\tall: " + percentiles(latencies) +
+             "\n\tsecond half: " + percentiles(Arrays.copyOfRange(latencies, latencies.length / 2, latencies.length)));
+   }
+
+
+   // Latency percentiles.
+   static String percentiles(double[] latencies)
+   {
+      double[] sorted = latencies.clone();
+
+      Arrays.sort(sorted);
+      return("p50=" + (long)sorted[sorted.length / 2] + "ms, p90=" + (long)sorted[(int)(sorted.length * 0.9)] +
+             "ms, p99=" + (long)sorted[(int)(sorted.length * 0.99)] + "ms");
+   }
+
+
+   public static void main(String[] args)
+   {
+      int    numNodes        = 1000;
+      int    origins         = 100;
+      int    transactions    = 20000;
+      double slowFraction    = 0.1;
+      double slowFactor      = 50.0;
+      int    hedgePercentile = 95;
+      int    randomSeed      = 4517;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if ((i + 1) == args.length)
+         {
+            System.err.println(Usage);
+            return;
+         }
+         if (args[i].equals("-numNodes"))
+         {
+            numNodes = Integer.parseInt(args[++i].trim());
+         }
+         else if (args[i].equals("-origins"))
+         {
+            origins = Integer.parseInt(args[++i].trim());
+         }
+         else if (args[i].equals("-transactions"))
+         {
+            transactions = Integer.parseInt(args[++i].trim());
+         }
+         else if (args[i].equals("-slowFraction"))
+         {
+            slowFraction = Double.parseDouble(args[++i].trim());
+         }
+         else if (args[i].equals("-slowFactor"))
+         {
+            slowFactor = Double.parseDouble(args[++i].trim());
+         }
+         else if (args[i].equals("-hedgePercentile"))
+         {
+            hedgePercentile = Integer.parseInt(args[++i].trim());
+         }
+         else if (args[i].equals("-randomSeed"))
+         {
+            randomSeed = Integer.parseInt(args[++i].trim());
+         }
+         else
+         {
+            System.err.println(Usage);
+            return;
+         }
+      }
+      if ((numNodes < 2) || (origins < 1) || (origins > numNodes) || (transactions < 1) ||
+          (slowFraction < 0.0) || (slowFraction > 1.0) || (slowFactor < 1.0) ||
+          (hedgePercentile <= 0) || (hedgePercentile >= 100))
+      {
+         System.err.println(Usage);
+         return;
+      }
+      QuorumSimulator simulator = new QuorumSimulator(numNodes, origins, slowFraction, slowFactor, randomSeed);
+      System.out.println("Nodes=" + numNodes + ", quorum members=" + simulator.density + ", slow fraction=" + slowFraction +
+                         ", slow factor=" + slowFactor);
+      int[] intersections = new int[3];
+      System.out.println(report("Uniform selection", simulator.run(transactions, false, 0, intersections), intersections));
+      intersections = new int[3];
+      System.out.println(report("Uniform selection, hedged", simulator.run(transactions, false, hedgePercentile, intersections), intersections));
+      intersections = new int[3];
+      System.out.println(report("Health weighted selection", simulator.run(transactions, true, 0, intersections), intersections));
+      intersections = new int[3];
+      System.out.println(report("Health weighted selection, hedged", simulator.run(transactions, true, hedgePercentile, intersections), intersections));
+   }
+}